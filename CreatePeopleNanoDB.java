@@ -9,25 +9,18 @@ public class CreatePeopleNanoDB {
     List<String> lines = Files.readAllLines((new File("people.txt")).toPath());
     int i, len = lines.size();
     //
-    ByteArrayOutputStream bao = new ByteArrayOutputStream();
-    NanoDB nano = new NanoDB("People");
-    nano.open( );
-    // set autoCommit
-    nano.autoCommit(true);
+    List<Map.Entry<String, Object>> entries = new ArrayList<>(len / 2);
     for (i = 0; i < len; i += 2) {
       char c = lines.get(i).charAt(0);
       if (c == '-') ++i;
-      bao.reset();
       String key = lines.get(i).trim();
       System.out.println("Create:"+key);
-      People obj = new People(key, lines.get(i+1).trim());      
-      ObjectOutputStream oos = new ObjectOutputStream(bao);
-      oos.writeObject(obj);
-      oos.flush();
-      nano.addObject("Joe", key, bao.toByteArray());
-      oos.close();
-      bao.close();
+      entries.add(new AbstractMap.SimpleEntry<>(key, new People(key, lines.get(i+1).trim())));
     }
+    NanoDB nano = new NanoDB("People");
+    nano.open( );
+    // the People objects are serialized and written by the bulk loader
+    nano.bulkLoad(entries.stream());
     nano.close( );
     System.out.println("Done");
     System.exit(0);
@@ -0,0 +1,399 @@
+package nanodb;
+//
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.concurrent.atomic.LongAdder;
+/**
+NanoCache, the data cache of a NanoDB bounded by the byte weight of its data.
+<br>- Dirty data (not yet in NanoDB file) is pinned: it's never evicted, but it counts to the weight.
+<br>- Clean data is evicted by W-TinyLFU: a small LRU window (1%) in front of a segmented LRU main area
+<br>  (probation and protected 80%). A window victim enters the main area only if it's more frequently
+<br>  used than the main victim. The frequencies are kept by a 4-bit Count-Min sketch with aging.
+<br>- Lookups are lock-free. The LRU order is updated only if the policy lock is free (lossy).
+<br>- Off-heap: the data is kept in NanoSlab (direct memory), the heap keeps only the slot handles.
+<br>  The data is copied out under an optimistic read stamp, a freed slot invalidates the copy.
+@author Joe T. Schwarz (c)
+*/
+public class NanoCache {
+  /**
+  constructor
+  @param limit long, max. weight (bytes) of the cached data
+  */
+  public NanoCache(long limit) {
+    this(limit, false);
+  }
+  /**
+  constructor
+  @param limit long, max. weight (bytes) of the cached data
+  @param offHeap boolean, true: data is kept off-heap in direct memory
+  */
+  public NanoCache(long limit, boolean offHeap) {
+    if (offHeap) slab = new NanoSlab();
+    for (int i = 0; i < 3; ++i) {
+      queues[i] = new Node(null);
+      queues[i].prev = queues[i].next = queues[i];
+    }
+    setLimit(limit);
+  }
+  /**
+  setLimit. The clean data is evicted down to the new limit.
+  @param limit long, max. weight (bytes) of the cached data
+  */
+  public void setLimit(long limit) {
+    lock.lock();
+    try {
+      this.limit = limit;
+      // ~1 counter per KB of data
+      int n = Integer.highestOneBit((int)Math.max(1024, Math.min(limit >> 10, 0x400000)));
+      if (counts == null || counts.length != n) {
+        counts = new byte[n];
+        additions = 0;
+      }
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  get the data of key
+  @param key String
+  @return byte array of data, null if key is not cached
+  */
+  public byte[] get(String key) {
+    Node n = touch(key);
+    byte[] data = n == null? null:read(n);
+    if (data == null) misses.increment();
+    else hits.increment();
+    return data;
+  }
+  /**
+  get the data of key into a ByteBuffer (e.g. a direct socket buffer). Off-heap data is copied
+  <br>from direct memory to direct memory without a byte array.
+  @param key String
+  @param dst ByteBuffer
+  @return ByteBuffer dst (or a larger copy of dst if data doesn't fit) with data appended, null if key is not cached
+  */
+  public ByteBuffer get(String key, ByteBuffer dst) {
+    Node n = touch(key);
+    ByteBuffer bb = n == null? null:read(n, dst);
+    if (bb == null) misses.increment();
+    else hits.increment();
+    return bb;
+  }
+  /**
+  put (or replace) the data of key
+  @param key String
+  @param data byte array
+  @param dirty boolean, true: data is not yet in NanoDB file (pinned)
+  */
+  public void put(String key, byte[] data, boolean dirty) {
+    lock.lock();
+    try {
+      Node n = map.get(key);
+      if (n == null) map.put(key, n = new Node(key));
+      else unlink(n);
+      store(n, data);
+      link(n, dirty? DIRTY:WINDOW);
+      increment(key.hashCode());
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  admit the clean data of key (e.g. read from NanoDB file) if key is not yet cached
+  @param key String
+  @param data byte array
+  */
+  public void admit(String key, byte[] data) {
+    lock.lock();
+    try {
+      if (map.containsKey(key)) return;
+      Node n = new Node(key);
+      store(n, data);
+      map.put(key, n);
+      link(n, WINDOW);
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  clean the dirty data of key if it's equal to the given data (now saved in NanoDB file)
+  @param key String
+  @param data byte array, the saved data
+  */
+  public void clean(String key, byte[] data) {
+    lock.lock();
+    try {
+      Node n = map.get(key);
+      if (n == null || n.queue != DIRTY || !Arrays.equals(read(n), data)) return;
+      unlink(n);
+      link(n, WINDOW);
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  remove key
+  @param key String
+  @return byte array of the removed data, null if key was not cached
+  */
+  public byte[] remove(String key) {
+    lock.lock();
+    try {
+      Node n = map.remove(key);
+      if (n == null) return null;
+      unlink(n);
+      byte[] data = read(n);
+      release(n);
+      return data;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  clear the cache
+  */
+  public void clear() {
+    lock.lock();
+    try {
+      for (Node n : map.values()) release(n);
+      map.clear();
+      if (slab != null) slab.clear();
+      for (int i = 0; i < 3; ++i) queues[i].prev = queues[i].next = queues[i];
+      Arrays.fill(weights, 0);
+      dirty = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+  @return long, number of cache hits
+  */
+  public long getHits() {
+    return hits.sum();
+  }
+  /**
+  @return long, number of cache misses
+  */
+  public long getMisses() {
+    return misses.sum();
+  }
+  /**
+  @return long, number of evicted data
+  */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+  /**
+  @return long, weight (bytes) of all cached data
+  */
+  public long getWeight() {
+    return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED] + dirty;
+  }
+  /**
+  @return long, weight (bytes) of the pinned dirty data
+  */
+  public long getDirtyWeight() {
+    return dirty;
+  }
+  /**
+  @return long, the reserved direct memory (bytes) if off-heap
+  */
+  public long getOffHeap() {
+    return slab != null? slab.getReserved():0;
+  }
+  /**
+  @return int, number of cached keys
+  */
+  public int size() {
+    return map.size();
+  }
+  //---------------------------------------------------------------------------------------
+  // lookup key and count the access
+  private Node touch(String key) {
+    Node n = map.get(key);
+    if (lock.tryLock()) try { // lossy: skipped if contended
+      increment(key.hashCode());
+      if (n != null && n.queue >= 0 && n.queue != DIRTY) access(n);
+    } finally {
+      lock.unlock();
+    }
+    return n;
+  }
+  // store data of node on heap or off-heap (if fits into a slot)
+  private void store(Node n, byte[] data) {
+    long st = stamp.writeLock();
+    try {
+      if (n.handle >= 0) slab.free(n.handle);
+      n.handle = slab != null? slab.allocate(data):-1;
+      n.data = n.handle < 0? data:null;
+      n.length = data.length;
+    } finally {
+      stamp.unlockWrite(st);
+    }
+  }
+  // free the data of node
+  private void release(Node n) {
+    long st = stamp.writeLock();
+    try {
+      if (n.handle >= 0) slab.free(n.handle);
+      n.handle = -1;
+      n.data = null;
+    } finally {
+      stamp.unlockWrite(st);
+    }
+  }
+  // copy the data of node, null if released
+  private byte[] read(Node n) {
+    while (true) {
+      long st = stamp.tryOptimisticRead();
+      byte[] data = n.data;
+      long h = n.handle;
+      if (h >= 0) try {
+        data = new byte[n.length];
+        slab.copy(h, data);
+      } catch (RuntimeException ex) { } // invalid, retry
+      if (stamp.validate(st)) return data;
+    }
+  }
+  // append the data of node to dst, null if released
+  private ByteBuffer read(Node n, ByteBuffer dst) {
+    while (true) {
+      long st = stamp.tryOptimisticRead();
+      byte[] data = n.data;
+      long h = n.handle;
+      int len = n.length, pos = dst.position();
+      if (h >= 0 || data != null) try {
+        if (dst.remaining() < len) { // grow
+          ByteBuffer bb = ByteBuffer.allocateDirect(pos + len);
+          dst.flip();
+          dst = bb.put(dst);
+          pos = dst.position();
+        }
+        if (h >= 0) slab.copy(h, len, dst);
+        else dst.put(data);
+      } catch (RuntimeException ex) { } // invalid, retry
+      if (stamp.validate(st)) return h >= 0 || data != null? dst:null;
+      dst.position(pos);
+    }
+  }
+  // LRU order on access: window and protected to tail, probation is promoted to protected
+  private void access(Node n) {
+    if (n.queue == PROBATION) {
+      unlink(n);
+      link(n, PROTECTED);
+      long max = (limit - dirty) * 99 / 100 * 8 / 10;
+      while (weights[PROTECTED] > max && queues[PROTECTED].next != n) { // demote the LRU
+        Node d = queues[PROTECTED].next;
+        unlink(d);
+        link(d, PROBATION);
+      }
+    } else {
+      int q = n.queue;
+      unlink(n);
+      link(n, q);
+    }
+  }
+  // evict the clean data down to the limit (the dirty data is pinned)
+  private void evict() {
+    long max = Math.max(0, limit - dirty), wMax = max / 100, mMax = max - wMax;
+    // the window victims must compete with the main victims
+    while (weights[WINDOW] > wMax) {
+      Node c = queues[WINDOW].next;
+      unlink(c);
+      while (weights[PROBATION] + weights[PROTECTED] + c.length > mMax) {
+        Node v = queues[PROBATION].next != queues[PROBATION]? queues[PROBATION].next:queues[PROTECTED].next;
+        if (v.queue < 0 || frequency(c.key.hashCode()) <= frequency(v.key.hashCode())) break;
+        drop(v);
+      }
+      if (weights[PROBATION] + weights[PROTECTED] + c.length > mMax) {
+        map.remove(c.key);
+        release(c);
+        evictions.increment();
+      } else link(c, PROBATION);
+    }
+    // e.g. the limit was reduced
+    while (weights[PROBATION] + weights[PROTECTED] > mMax) {
+      drop(queues[PROBATION].next != queues[PROBATION]? queues[PROBATION].next:queues[PROTECTED].next);
+    }
+  }
+  private void drop(Node n) {
+    unlink(n);
+    map.remove(n.key);
+    release(n);
+    evictions.increment();
+  }
+  private void link(Node n, int q) {
+    n.queue = q;
+    if (q == DIRTY) {
+      dirty += n.length;
+      return;
+    }
+    Node h = queues[q];
+    n.prev = h.prev;
+    n.next = h;
+    h.prev.next = n;
+    h.prev = n;
+    weights[q] += n.length;
+  }
+  private void unlink(Node n) {
+    if (n.queue == DIRTY) dirty -= n.length;
+    else {
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+      n.prev = n.next = null;
+      weights[n.queue] -= n.length;
+    }
+    n.queue = -1;
+  }
+  // Count-Min sketch: 4 counters of max. 15 per key. All are halved after 10 * size additions
+  private void increment(int h) {
+    for (int i = 0; i < 4; ++i) {
+      int x = index(h, i);
+      if (counts[x] < 15) ++counts[x];
+    }
+    if (++additions >= 10 * counts.length) {
+      for (int i = 0; i < counts.length; ++i) counts[i] >>= 1;
+      additions = 0;
+    }
+  }
+  private int frequency(int h) {
+    int f = 15;
+    for (int i = 0; i < 4; ++i) f = Math.min(f, counts[index(h, i)]);
+    return f;
+  }
+  private int index(int h, int i) {
+    h = (h + SEEDS[i]) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (counts.length - 1);
+  }
+  //
+  private static class Node {
+    Node(String key) {
+      this.key = key;
+    }
+    volatile long handle = -1;
+    volatile byte[] data;
+    volatile int length;
+    int queue = -1;
+    Node prev, next;
+    String key;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int DIRTY = 3, WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+  private static final int[] SEEDS = { 0x97CB3127, 0xB4B82E39, 0x8A8F7E5D, 0x6C62272E };
+  private ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<>(256);
+  private LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+  private StampedLock stamp = new StampedLock();
+  private ReentrantLock lock = new ReentrantLock();
+  private NanoSlab slab;
+  private Node[] queues = new Node[3];
+  private long[] weights = new long[3];
+  private volatile long limit, dirty;
+  private int additions;
+  private byte[] counts;
+}
@@ -0,0 +1,28 @@
+package nanodb;
+/**
+NanoCodec, the compression codec of NanoDB records (see NanoDB.setCodec()).
+<br>A codec is identified by its id (1..255) in the compressed records, e.g. NanoDeflater: 1
+@author Joe T. Schwarz (c)
+*/
+public interface NanoCodec {
+  /**
+  @return int, the codec id (1..255). Must never change for a codec.
+  */
+  int id();
+  /**
+  compress
+  @param data byte array
+  @return byte array of the compressed data, null if data cannot be compressed (not smaller)
+  */
+  byte[] compress(byte[] data);
+  /**
+  decompress
+  @param buf byte array of the compressed data
+  @param off int, offset of the compressed data in buf
+  @param len int, length of the compressed data
+  @param size int, size of the decompressed data
+  @return byte array of the decompressed data
+  @exception Exception thrown by JAVA or if the compressed data is corrupted
+  */
+  byte[] decompress(byte[] buf, int off, int len, int size) throws Exception;
+}
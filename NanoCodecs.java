@@ -0,0 +1,79 @@
+package nanodb;
+//
+import java.util.*;
+/**
+NanoCodecs, the registered NanoCodecs and the encoded form of the records.
+<br>- Encoded record: header byte 0 + data (uncompressed) or codec id + decompressed size + compressed data = 1+4+n bytes
+<br>- The encoded records are flagged by the top bit of their size in the key block and in the log.
+<br>- Records of a NanoDB without codec are not encoded (raw). Both can be mixed in a NanoDB file.
+@author Joe T. Schwarz (c)
+*/
+final class NanoCodecs {
+  /**
+  register a codec by its id
+  @param codec NanoCodec
+  */
+  static void register(NanoCodec codec) {
+    int id = codec.id();
+    if (id < 1 || id > 255) throw new IllegalArgumentException("Invalid codec id "+id);
+    codecs[id] = codec;
+  }
+  /**
+  encode data. Data smaller than threshold or not compressible by codec is kept uncompressed.
+  @param data byte array (raw)
+  @param codec NanoCodec
+  @param threshold int, min. data size for compression
+  @return byte array of the encoded record
+  */
+  static byte[] encode(byte[] data, NanoCodec codec, int threshold) {
+    byte[] cb = data.length < threshold? null:codec.compress(data);
+    if (cb == null || cb.length + 5 >= data.length + 1) {
+      byte[] rec = new byte[data.length + 1]; // header 0: uncompressed
+      System.arraycopy(data, 0, rec, 1, data.length);
+      return rec;
+    }
+    byte[] rec = new byte[cb.length + 5];
+    rec[0] = (byte)codec.id();
+    rec[1] = (byte)(data.length >> 24);
+    rec[2] = (byte)(data.length >> 16);
+    rec[3] = (byte)(data.length >> 8);
+    rec[4] = (byte) data.length;
+    System.arraycopy(cb, 0, rec, 5, cb.length);
+    return rec;
+  }
+  /**
+  decode an encoded record
+  @param rec byte array of the encoded record
+  @return byte array of data (raw)
+  @exception Exception thrown by JAVA or if the codec is unknown
+  */
+  static byte[] decode(byte[] rec) throws Exception {
+    int id = rec[0] & 0xFF;
+    if (id == 0) return Arrays.copyOfRange(rec, 1, rec.length);
+    NanoCodec codec = codecs[id];
+    if (codec == null) throw new Exception("Unknown codec "+id);
+    int size = ((rec[1] & 0xFF) << 24) | ((rec[2] & 0xFF) << 16) | ((rec[3] & 0xFF) << 8) | (rec[4] & 0xFF);
+    return codec.decompress(rec, 5, rec.length - 5, size);
+  }
+  /**
+  convert a record to the form of a NanoDB
+  @param rec byte array of the record
+  @param flagged boolean, true: rec is encoded
+  @param encoded boolean, true: the NanoDB keeps encoded records (it has a codec)
+  @return byte array of the record in the given form
+  @exception Exception thrown by JAVA or if the codec is unknown
+  */
+  static byte[] convert(byte[] rec, boolean flagged, boolean encoded) throws Exception {
+    if (flagged == encoded) return rec;
+    if (flagged) return decode(rec);
+    byte[] bb = new byte[rec.length + 1]; // header 0: uncompressed
+    System.arraycopy(rec, 0, bb, 1, rec.length);
+    return bb;
+  }
+  //---------------------------------------------------------------------------------------
+  static final int FLAG = 0x80000000; // the top bit of the record size
+  private static final NanoCodec[] codecs = new NanoCodec[256];
+  static {
+    register(new NanoDeflater());
+  }
+}
@@ -0,0 +1,121 @@
+package nanodb;
+/**
+NanoCompactor, the background compaction of a NanoDB.
+<br>It checks periodically the garbage (dead records and log) of the NanoDB and compacts it if
+<br>- the garbage exceeds the fragmentation ratio of NanoDB size and the min. garbage size, or
+<br>- the log exceeds the cache limit (the logged data is kept in cache until it's merged)
+<br>A failed compaction is counted and kept (getFailures(), getLastFailure()). After consecutive failures
+<br>the check interval is doubled up to 32 times (back off, e.g. disk full) until a compaction succeeds.
+@author Joe T. Schwarz (c)
+*/
+public class NanoCompactor implements Runnable {
+  /**
+  constructor
+  @param nano NanoDB to be compacted
+  */
+  public NanoCompactor(NanoDB nano) {
+    this.nano = nano;
+  }
+  /**
+  setThreshold (default: 0.5, 1 MB)
+  @param ratio double, fragmentation ratio (garbage / NanoDB size) between 0.0 and 1.0
+  @param min long, min. garbage size in bytes
+  */
+  public void setThreshold(double ratio, long min) {
+    this.ratio = ratio;
+    this.min = min;
+  }
+  /**
+  setInterval (default: 10 seconds)
+  @param millis long, check interval in milliseconds
+  */
+  public void setInterval(long millis) {
+    this.millis = millis;
+  }
+  /**
+  getCompactions
+  @return long, number of the done compactions
+  */
+  public long getCompactions() {
+    return compactions;
+  }
+  /**
+  getReclaimed
+  @return long, total of the reclaimed bytes
+  */
+  public long getReclaimed() {
+    return reclaimed;
+  }
+  /**
+  getLastTime
+  @return long, elapsed time of the last compaction in milliseconds
+  */
+  public long getLastTime() {
+    return last;
+  }
+  /**
+  getFailures
+  @return long, number of the failed compactions
+  */
+  public long getFailures() {
+    return failures;
+  }
+  /**
+  getLastFailure
+  @return Exception, the cause of the last failed compaction, null if none
+  */
+  public Exception getLastFailure() {
+    return lastFailure;
+  }
+  /**
+  start the background thread
+  */
+  public void start() {
+    running = true;
+    thread = new Thread(this, "NanoCompactor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+  /**
+  stop the background thread and wait for the running compaction
+  @exception Exception thrown by JAVA
+  */
+  public void stop() throws Exception {
+    if (thread == null) return;
+    running = false;
+    synchronized(this) {
+      notifyAll();
+    }
+    if (thread != Thread.currentThread()) thread.join();
+    thread = null;
+  }
+  //
+  public void run() {
+    while (running) try {
+      synchronized(this) {
+        wait(millis << Math.min(failed, 5)); // NOT interrupt: an interrupted FileChannel is closed
+      }
+      if (!running) return;
+      long g = nano.getGarbage();
+      if (nano.isLogFull() || g >= min && g >= ratio * nano.getSize()) {
+        long t0 = System.nanoTime();
+        reclaimed += nano.compact();
+        last = (System.nanoTime() - t0) / 1000000;
+        ++compactions;
+      }
+      failed = 0;
+    } catch (Exception ex) {
+      lastFailure = ex;
+      ++failures;
+      ++failed;
+    }
+  }
+  //---------------------------------------------------------------------------------------
+  private volatile long compactions = 0, reclaimed = 0, last = 0, failures = 0, millis = 10000, min = 0x100000;
+  private volatile Exception lastFailure;
+  private int failed; // consecutive failures
+  private volatile boolean running = false;
+  private volatile double ratio = 0.5;
+  private Thread thread;
+  private NanoDB nano;
+}
@@ -5,8 +5,14 @@ import java.nio.*;
 import java.util.*;
 import java.nio.file.*;
 import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.nio.charset.Charset;
 import java.nio.channels.FileLock;
+import java.nio.channels.GatheringByteChannel;
 /**
 Nano Database in Nutshell.
 <br>NanoDB consists of 2 areas: key area and data or record area
@@ -14,13 +20,22 @@ Nano Database in Nutshell.
 <br>- The data area contains the records, which can be serializable objects or strings
 <br>- The key of addObject is automatically locked and must be released (unlocked) by the owner for the others
 <br>- The key of deleteObject remains locked until it is released (unlocked) by the owner.
+<br>- Readers never wait: a key modified (uncommitted) by another user is read as last committed.
+<br>- snapshot() gives a consistent point-in-time view of the committed data.
+<br>- commit(userID, NanoTransaction) applies the adds, updates and deletes of many keys all or nothing.
+<br>- addIndex() maintains a secondary index by an extracted index key, findByIndex() looks up its keys.
 <br>- Data must be committed before closed. Otherwise data will be lost.
+<br>- Committed data is appended to the Write-Ahead-Log fName_log and replayed by open().
+<br>  By default a commit returns after the fsync of its batch (see setSync() for the faster policies).
+<br>- The log is merged into the NanoDB file by the background NanoCompactor or by close().
+<br>- The keys are looked up lazily in the persistent index fName_idx: open() does not load the key area.
+<br>- NanoDB file is a manifest fName with the key area and segment files fName#0, fName#1, ... with 64 bit pointers.
 @author Joe T. Schwarz (c)
 */
 public class NanoDB {
   /**
   constructor
-  @param fName  String, file name
+  @param fName  String, file name (without '#': it separates the name and the id of a segment file)
   @exception Exception thrown by JAVA
   */
   public NanoDB(String fName) {
@@ -29,7 +44,7 @@ public class NanoDB {
   }
   /**
   constructor
-  @param fName  String, file name
+  @param fName  String, file name (without '#': it separates the name and the id of a segment file)
   @param charsetName String, character set name (e.g. "UTF-8");
   @exception Exception thrown by JAVA
   */
@@ -38,13 +53,109 @@ public class NanoDB {
     cs = Charset.forName(charsetName);
   }
   /**
-  setCacheLimit (min. 1 MB)
+  setCacheLimit (min. 1 MB, max. 1 GB). The clean data beyond the limit is evicted.
   @param lim int, max. cache limit for NanoDB
   */
   public void setCacheLimit(int lim) {
-    this.lim = lim;
     if (lim < 0x100000) lim = 0x100000;
     else if (lim > 0x40000000) lim = 0x40000000;
+    this.lim = lim;
+    cache.setLimit(lim);
+  }
+  /**
+  getCache returns the data cache of this NanoDB (counters of hits, misses, evictions)
+  @return NanoCache
+  */
+  public NanoCache getCache() {
+    return cache;
+  }
+  /**
+  setMapped (default: true). Must be set before open().
+  <br>Reads from the NanoDB file via MappedByteBuffers. If mapping is unavailable FileChannel is used.
+  @param mapped boolean, true: memory-mapped read mode, false: positional FileChannel reads
+  */
+  public void setMapped(boolean mapped) {
+    this.mapped = mapped;
+  }
+  /**
+  isMapped.
+  @return boolean true if NanoDB file is read via MappedByteBuffers
+  */
+  public boolean isMapped() {
+    return file != null && file.isMapped();
+  }
+  /**
+  setSegmentSize (default: 1 GB). Must be set before open().
+  <br>NanoDB file consists of a manifest fName and segment files fName#0, fName#1, ... The data can grow
+  <br>beyond 2 GB: a segment is filled up to this size and a record never straddles 2 segments.
+  @param segSize long, max. segment size in bytes (1 MB ... 1 GB)
+  */
+  public void setSegmentSize(long segSize) {
+    this.segSize = Math.max(0x100000L, Math.min(segSize, 0x40000000L));
+  }
+  /**
+  getSegmentSize
+  @return long, max. segment size in bytes
+  */
+  public long getSegmentSize() {
+    return segSize;
+  }
+  /**
+  setSync (default: NanoLog.BATCH). Must be set before open().
+  <br>The concurrent commits are written to the log as one batch (group commit). The batch is synced
+  <br>never (NanoLog.NEVER), before the commits return (NanoLog.BATCH) or periodically (NanoLog.INTERVAL).
+  <br>Trade-off: only BATCH makes a returned commit durable. With INTERVAL the commits of the last
+  <br>interval, with NEVER all unflushed commits can be lost by a crash of the OS or a power failure
+  <br>(not by a crash of the JVM). They are faster: the committers don't wait for an fsync.
+  @param policy int, NanoLog.NEVER, NanoLog.BATCH or NanoLog.INTERVAL
+  @param millis long, sync interval in milliseconds (NanoLog.INTERVAL only)
+  */
+  public void setSync(int policy, long millis) {
+    this.sync = policy;
+    this.syncMillis = millis;
+  }
+  /**
+  getLog returns the Write-Ahead-Log of this NanoDB (commit latency, batch size and sync counters)
+  @return NanoLog
+  */
+  public NanoLog getLog() {
+    return log;
+  }
+  /**
+  setOffHeap (default: false). Must be set before open().
+  <br>The cached data is kept in direct memory (off the JAVA heap). The heap keeps only the keys.
+  @param offHeap boolean, true: off-heap data cache, false: on-heap data cache
+  */
+  public void setOffHeap(boolean offHeap) {
+    if (offHeap != this.offHeap) cache = new NanoCache(lim, offHeap);
+    this.offHeap = offHeap;
+  }
+  /**
+  isOffHeap.
+  @return boolean true if the cached data is kept off-heap
+  */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+  /**
+  setCodec (default: none). Must be set before open().
+  <br>The records of at least threshold bytes are compressed by codec if they get smaller. They are kept
+  <br>compressed in the cache, in the log and in the NanoDB file. readObject() returns them decompressed.
+  <br>The records of a former codec (or without codec) remain readable.
+  @param codec NanoCodec, e.g. NanoDeflater. null: no compression
+  @param threshold int, min. record size for compression
+  */
+  public void setCodec(NanoCodec codec, int threshold) {
+    if (codec != null) NanoCodecs.register(codec);
+    this.codec = codec;
+    this.threshold = threshold;
+  }
+  /**
+  getCodec
+  @return NanoCodec, null if no compression
+  */
+  public NanoCodec getCodec() {
+    return codec;
   }
   /**
   autoCommit (default: false)
@@ -58,7 +169,34 @@ public class NanoDB {
   @return ArrayList of strings (as keys) or an empty arraylist if NanoDB must be created
   */
   public ArrayList<String> getKeys() {
-    return new ArrayList<>(keysList);
+    String[] keys;
+    NanoFile f = file;
+    while ((keys = f.keys()).length == 0 && (f != file || swapping)) f = file; // closed by a swap
+    ArrayList<String> list = new ArrayList<>(512);
+    for (String key : keys) if (!deleted.contains(key) && !added.contains(key)) list.add(key);
+    list.addAll(added);
+    return list;
+  }
+  /**
+  scan the keys in key order from fromKey (inclusive) to toKey (exclusive). Next page: fromKey = last key + "\0"
+  <br>The keys of NanoDB file are read from the key order of its index (memory-mapped) and merged with
+  <br>the keys added since the last compaction: the heap of a scan is bounded by limit, not by the NanoDB size.
+  @param fromKey String, null: from the first key
+  @param toKey String, null: up to the last key
+  @param limit int, max. number of keys
+  @return ArrayList of keys in key order
+  */
+  public ArrayList<String> scan(String fromKey, String toKey, int limit) {
+    return scan(fromKey, key -> toKey == null || key.compareTo(toKey) < 0, limit);
+  }
+  /**
+  scan the keys with prefix in key order (see scan())
+  @param prefix String
+  @param limit int, max. number of keys
+  @return ArrayList of keys in key order
+  */
+  public ArrayList<String> scanPrefix(String prefix, int limit) {
+    return scan(prefix, key -> key.startsWith(prefix), limit);
   }
   /**
   isAutoCommit.
@@ -74,28 +212,38 @@ public class NanoDB {
   @return boolean true if key is locked, false if key is already locked by other user
   */
   public boolean lock(String userID, String key) {
-    if (lockedList.contains(key)) return false;
-    List<String> kList = keysLocked.get(userID);
-    if (kList == null) kList = Collections.synchronizedList(new ArrayList<>());
-    kList.add(key); // include key
-    keysLocked.put(userID, kList);
-    lockedList.add(key);
-    return true;
+    return locks.lock(userID, key);
+  }
+  /**
+  lock key, wait if it's locked by other user. The waiting users get the key in order of arrival
+  <br>as soon as it's unlocked (or the owner is removed).
+  @param userID String
+  @param key String
+  @param timeout long, max. waiting time in milliseconds
+  @return boolean true if key is locked, false if key is still locked by other user after timeout
+  */
+  public boolean lock(String userID, String key, long timeout) {
+    return locks.lock(userID, key, timeout);
+  }
+  /**
+  lock key without waiting: done is called when key is locked or the timeout is over (no thread waits).
+  <br>done must not block: it may be called by unlock() of other user.
+  @param userID String
+  @param key String
+  @param timeout long, max. waiting time in milliseconds
+  @param done Consumer, true if key is locked, false if key is still locked by other user after timeout
+  */
+  public void lock(String userID, String key, long timeout, Consumer<Boolean> done) {
+    locks.lock(userID, key, timeout, done);
   }
   /**
   unlock a locked key
   @param userID String
   @param key String
-  @return boolean true if key is unlocked, false if key is already unlocked or unknown
+  @return boolean true if key is unlocked, false if key is unlocked, unknown or locked by other user
   */
   public boolean unlock(String userID, String key) {
-    if (!lockedList.contains(key)) return false;
-    List<String> kList = keysLocked.get(userID);
-    if (kList == null || kList.size() == 0) return false;
-    kList.remove(key); // remove key
-    keysLocked.put(userID, kList);
-    lockedList.remove(key);
-    return true;
+    return locks.unlock(userID, key);
   }
   /**
   isLocked.
@@ -103,7 +251,7 @@ public class NanoDB {
   @return boolean true if key is locked
   */
   public boolean isLocked(String key) {
-    return lockedList.contains(key);
+    return locks.isLocked(key);
   }
   /**
   isExisted. Excl. deleted key
@@ -111,7 +259,7 @@ public class NanoDB {
   @return boolean true if querried key exists (deleted keys won't count)
   */
   public boolean isExisted(String key) {
-    return keysList.contains(key);
+    return exists(key);
   }
   /**
   isKeyDeleted
@@ -119,28 +267,80 @@ public class NanoDB {
   @return boolean true if querried key is deleted
   */
   public boolean isKeyDeleted(String key) {
-    return oCache.containsKey(key) && !keysList.contains(key);
+    return oCache.containsKey(key) && !exists(key);
   }
   /**
-  readObject
+  readObject. A key modified (uncommitted) by another user is read as last committed: readers never wait.
   @param userID String
   @param key String
   @return byte array for (non)serializable object
   @exception Exception thrown by JAVA
   */
   public byte[] readObject(String userID, String key) throws Exception {
-    if (!keysList.contains(key)) throw new Exception("Unknown "+key);
-    // check for lock by other users
-    List<String> kList = keysLocked.get(userID);
-    if ((kList == null || !kList.contains(key)) &&
-       lockedList.contains(key)) throw new Exception(key+" is locked by other User.");
-    //
-    if (cache.containsKey(key)) return cache.get(key);
-    // read from file
-    byte[] buf = new byte[sizes.get(key)];
-    raf.seek(pointers.get(key));
-    raf.read(buf);
-    return buf; 
+    byte[] bb = committed(userID, key);
+    if (bb != null) return bb;
+    checkRead(key);
+    byte[] buf = fetch(key);
+    bb = committed(userID, key); // modified in the meantime
+    return bb != null? bb:buf;
+  }
+  /**
+  readObject into a ByteBuffer (e.g. a direct socket buffer). Cached data is copied without
+  <br>a byte array on the JAVA heap if off-heap.
+  @param userID String
+  @param key String
+  @param buf ByteBuffer, the data is appended
+  @return ByteBuffer buf (or a larger copy of buf if data doesn't fit) with the appended data
+  @exception Exception thrown by JAVA
+  */
+  public ByteBuffer readObject(String userID, String key, ByteBuffer buf) throws Exception {
+    if (codec == null && committed(userID, key) == null) { // compressed data must be decompressed on heap
+      checkRead(key);
+      int pos = buf.position();
+      ByteBuffer bb = cache.get(key, buf);
+      if (bb != null && committed(userID, key) == null) return bb;
+      if (bb != null) buf = bb.position(pos); // modified in the meantime
+    }
+    byte[] bytes = readObject(userID, key);
+    if (buf.remaining() < bytes.length) { // grow
+      ByteBuffer bb = ByteBuffer.allocateDirect(buf.position() + bytes.length);
+      buf.flip();
+      buf = bb.put(buf);
+    }
+    return buf.put(bytes);
+  }
+  /**
+  readObject to a channel (e.g. a SocketChannel): head, then the data without concatenation.
+  <br>- Uncached data is transferred from NanoDB file by FileChannel.transferTo() (not admitted to cache:
+  <br>  the file pages are cached by the OS). A compressed record is decompressed and admitted to cache.
+  <br>- Cached data is written by a gathering write of head and data.
+  @param userID String
+  @param key String
+  @param head ByteBuffer, flipped, e.g. a status byte
+  @param ch GatheringByteChannel in blocking mode (or a NanoDBChannel of a non-blocking SocketChannel)
+  @exception Exception thrown by JAVA. Nothing is written if head has remaining
+  */
+  public void readObject(String userID, String key, ByteBuffer head, GatheringByteChannel ch) throws Exception {
+    byte[] bb = committed(userID, key);
+    if (bb == null) {
+      checkRead(key);
+      byte[] buf = cache.get(key);
+      if (buf == null) {
+        NanoFile f = file;
+        if (f.retain()) try { // pinned: not closed by compact()
+          if (f.isStored(key) && f.transfer(key, head, ch)) return;
+        } finally {
+          f.release();
+        }
+        buf = readData(key); // from file
+        cache.admit(key, buf);
+      }
+      bb = committed(userID, key); // modified in the meantime
+      if (bb == null) bb = codec != null? NanoCodecs.decode(buf):buf;
+    }
+    ByteBuffer data = ByteBuffer.wrap(bb);
+    ByteBuffer[] bbs = { head, data };
+    while (head.hasRemaining() || data.hasRemaining()) ch.write(bbs);
   }
   /**
   addObject with key by userID 
@@ -165,17 +365,20 @@ public class NanoDB {
   @exception Exception thrown by JAVA
   */
   public void addObject(String userID, String key, byte[] buf) throws Exception {
-    if (keysList.contains(key)) throw new Exception(key+" exists.");
+    if (exists(key)) throw new Exception(key+" exists.");
+    if (auto && locks.isLocked(key) && !locks.isOwner(userID, key)) throw new Exception(key+" is locked by other.");
+    byte[] data = buf;
+    if (codec != null) buf = NanoCodecs.encode(buf, codec, threshold);
     if (!auto) {
-      List<String> kList = keysLocked.get(userID);
-      if (kList == null) kList = Collections.synchronizedList(new ArrayList<>());
-      kList.add(key);
-      lockedList.add(key);
-      keysLocked.put(userID, kList);
+      if (!locks.lock(userID, key)) throw new Exception(key+" is locked by other.");
       oCache.put(key, new byte[] {});
-    } else committed = true;
-    cache.put(key, buf);
-    keysList.add(key);
+    } else {
+      log.append(key, buf);
+      committed = true;
+    }
+    cache.put(key, buf, true);
+    include(key);
+    if (auto) index(key, data, false); // otherwise by commit
   }
   /**
   deleteObject with key by userID
@@ -184,23 +387,24 @@ public class NanoDB {
   @exception Exception thrown by JAVA
   */
   public void deleteObject(String userID, String key) throws Exception {
-    if (!keysList.contains(key)) throw new Exception(key+" is not existed.");
+    if (!exists(key)) throw new Exception(key+" is not existed.");
     if (oCache.containsKey(key)) throw new Exception("Object of "+key+" was modified but uncommitted.");
-    List<String> kList = keysLocked.get(userID);
-    if (kList == null || !kList.contains(key)) {
-      if (lockedList.contains(key)) throw new Exception(key+" is locked by other.");
+    if (!locks.isOwner(userID, key)) {
+      if (locks.isLocked(key)) throw new Exception(key+" is locked by other.");
       throw new Exception(key+" is unlocked.");
     }
-    if (!auto) {
-      if (cache.containsKey(key)) oCache.put(key, cache.remove(key));
-      else { // from file
-        byte[] buf = new byte[sizes.get(key)];
-        raf.seek(pointers.get(key));
-        raf.read(buf);
-        oCache.put(key, buf);
-      }
-    } else committed = true;
-    keysList.remove(key);
+    if (!auto) { // the committed version first: a reader never misses it
+      byte[] buf = cache.get(key);
+      oCache.put(key, buf != null? buf:readData(key));
+      cache.remove(key);
+    } else {
+      log.append(key, null);
+      file.stale(key);
+      cache.remove(key);
+      committed = true;
+    }
+    exclude(key);
+    if (auto) index(key, null, false);
   }
   /**
   updateObject
@@ -225,23 +429,24 @@ public class NanoDB {
   @exception Exception thrown by JAVA
   */
   public void updateObject(String userID, String key, byte[] buf) throws Exception {
-    if (!keysList.contains(key)) throw new Exception(key+" is not existed.");
+    if (!exists(key)) throw new Exception(key+" is not existed.");
     if (oCache.containsKey(key)) throw new Exception("Object of "+key+" was modified but uncommitted.");
-    List<String> kList = keysLocked.get(userID);
-    if (kList == null || !kList.contains(key)) {
-      if (lockedList.contains(key)) throw new Exception(key+" is locked by other.");
+    if (!locks.isOwner(userID, key)) {
+      if (locks.isLocked(key)) throw new Exception(key+" is locked by other.");
       throw new Exception(key+" is unlocked.");
     }
+    byte[] data = buf;
+    if (codec != null) buf = NanoCodecs.encode(buf, codec, threshold);
     if (!auto) {
-      if (cache.containsKey(key)) oCache.put(key, cache.get(key));
-      else { // from file
-        byte[] bb = new byte[sizes.get(key)];
-        raf.seek(pointers.get(key));
-        raf.read(bb);
-        oCache.put(key, bb);
-      }
-    } else committed = true;
-    cache.put(key, buf);
+      byte[] bb = cache.get(key);
+      oCache.put(key, bb != null? bb:readData(key));
+    } else {
+      log.append(key, buf);
+      file.stale(key);
+      committed = true;
+    }
+    cache.put(key, buf, true);
+    if (auto) index(key, data, false);
   }
   /**
   commit transaction of the given key.
@@ -250,19 +455,40 @@ public class NanoDB {
   @return boolean true if successful
   */
   public boolean commit(String userID, String key) {
-    List<String> kList = keysLocked.get(userID);
-    if (auto || kList == null || !kList.contains(key) || oCache.remove(key) == null) return false;
+    if (auto || !locks.isOwner(userID, key) || !oCache.containsKey(key)) return false;
+    byte[] buf;
+    try { // log the committed data. Deleted key if it no longer exists
+      buf = exists(key)? current(key):null;
+      log.append(key, buf);
+    } catch (Exception ex) {
+      return false;
+    }
+    index(key, buf, true); // the indexes hold only committed data
+    file.stale(key);
+    oCache.remove(key);
     committed = true;
     return true;     
   }
   /**
   commit all uncommitted transactions
   @param userID String
+  @exception Exception thrown by JAVA
   */
-  public void commitAll(String userID) {
-    List<String> kList = keysLocked.get(userID);
-    if (auto || kList == null || oCache.size() == 0) return;
-    for (String key : kList) if (oCache.remove(key) != null) committed = true;
+  public void commitAll(String userID) throws Exception {
+    if (auto || oCache.size() == 0) return;
+    List<String> keys = new ArrayList<>();
+    for (String key : locks.keys(userID)) if (oCache.containsKey(key)) keys.add(key);
+    if (keys.size() == 0) return;
+    String[] ks = keys.toArray(new String[keys.size()]);
+    byte[][] bufs = new byte[ks.length][];
+    for (int i = 0; i < ks.length; ++i) bufs[i] = exists(ks[i])? current(ks[i]):null;
+    log.append(ks, bufs); // all or nothing
+    for (int i = 0; i < ks.length; ++i) {
+      index(ks[i], bufs[i], true);
+      file.stale(ks[i]);
+      oCache.remove(ks[i]);
+    }
+    committed = true;
   }
   /** 
   rollback() rollbacks the LAST modified/added action
@@ -271,18 +497,17 @@ public class NanoDB {
   @return boolean true if rollback is successful, false: unknown key, no rollback
   */
   public boolean rollback(String userID, String key) {
-    List<String> kList = keysLocked.get(userID);
-    if (auto || kList == null || !kList.contains(key) || oCache.size() == 0) return false;
-    byte[] bb = oCache.remove(key);
+    if (auto || !locks.isOwner(userID, key) || oCache.size() == 0) return false;
+    byte[] bb = oCache.get(key);
     if (bb == null) return false;
     if (bb.length == 0) { // add ?
-      keysList.remove(key);
+      exclude(key);
       cache.remove(key);
-      return true;
+    } else { // update or delete. Restore key if it's delete
+      include(key);
+      cache.put(key, bb, !file.isStored(key));
     }
-    // update or delete. Restore key if it's delete
-    if (!keysList.contains(key)) keysList.add(key);
-    cache.put(key, bb);
+    oCache.remove(key); // after restore: the other readers see the committed data
     return true;
   }
   /** 
@@ -290,183 +515,477 @@ public class NanoDB {
   @param userID String
   */
   public void rollbackAll(String userID) {
-    List<String> kList = keysLocked.get(userID);
-    if (auto || kList == null || oCache.size() == 0) return;
-    for (String key : kList) {
-      byte[] bb = oCache.remove(key);
+    if (auto || oCache.size() == 0) return;
+    for (String key : locks.keys(userID)) {
+      byte[] bb = oCache.get(key);
       if (bb != null) {
         if (bb.length == 0) {
-          keysList.remove(key);
+          exclude(key);
           cache.remove(key);
         } else { // update or delete. Restore key if it's delete
-          if (!keysList.contains(key)) keysList.add(key);
-          cache.put(key, bb);
+          include(key);
+          cache.put(key, bb, !file.isStored(key));
+        }
+        oCache.remove(key);
+      }
+    }
+  }
+  /**
+  addIndex, a secondary index of the records by the index key of extractor (see findByIndex()).
+  <br>It's kept up to date by the committed changes (an uncommitted change is indexed by its commit),
+  <br>persisted by close() and loaded (or rebuilt) by open().
+  <br>Registered before open() or (built at once) after open().
+  @param name String, index name (part of the index file name fName_ix_name)
+  @param extractor NanoExtractor, e.g. NanoExtractor.field("image")
+  @exception Exception thrown by JAVA
+  */
+  public void addIndex(String name, NanoExtractor extractor) throws Exception {
+    NanoSecondary ix = new NanoSecondary(name, extractor);
+    if (indexes.putIfAbsent(name, ix) != null) throw new Exception("Index "+name+" exists.");
+    if (file != null) build(ix, true);
+  }
+  /**
+  removeIndex and its persisted file
+  @param name String, index name
+  */
+  public void removeIndex(String name) {
+    NanoSecondary ix = indexes.remove(name);
+    if (ix != null) ix.clear();
+    new File(fName+"_ix_"+name).delete();
+  }
+  /**
+  findByIndex
+  @param name String, index name
+  @param value String, index key
+  @return ArrayList of the keys of the records with the index key value in key order
+  @exception Exception thrown by JAVA
+  */
+  public ArrayList<String> findByIndex(String name, String value) throws Exception {
+    NanoSecondary ix = indexes.get(name);
+    if (ix == null) throw new Exception("Unknown index "+name);
+    return ix.find(value);
+  }
+  /**
+  begin a transaction: the changes are buffered in NanoTransaction and applied by commit(userID, transaction)
+  @return NanoTransaction, empty
+  */
+  public NanoTransaction begin() {
+    return new NanoTransaction();
+  }
+  /**
+  commit a transaction: all adds, updates and deletes are applied or none (one log record).
+  <br>The keys are locked in key order (see NanoTransaction.setTimeout()) and unlocked after commit.
+  <br>The keys locked by userID before remain locked. The keys must not have uncommitted changes.
+  @param userID String
+  @param tx NanoTransaction
+  @exception Exception thrown by JAVA, e.g. a key is locked by other user, exists (add) or doesn't exist
+  */
+  public void commit(String userID, NanoTransaction tx) throws Exception {
+    String[] keys = tx.keys();
+    if (keys.length == 0) return;
+    List<String> locked = new ArrayList<>(keys.length);
+    try {
+      for (String key : keys) { // in key order: no deadlock between transactions
+        if (locks.isOwner(userID, key)) continue;
+        if (!locks.lock(userID, key, tx.getTimeout())) throw new Exception(key+" is locked by other.");
+        locked.add(key);
+      }
+      byte[][] bufs = new byte[keys.length][];
+      for (int i = 0; i < keys.length; ++i) {
+        String key = keys[i];
+        if (oCache.containsKey(key)) throw new Exception("Object of "+key+" was modified but uncommitted.");
+        byte op = tx.op(key);
+        if (op == NanoTransaction.ADD) {
+          if (exists(key)) throw new Exception(key+" exists.");
+        } else if (!exists(key)) throw new Exception(key+" is not existed.");
+        bufs[i] = tx.data(key);
+        if (bufs[i] != null && codec != null) bufs[i] = NanoCodecs.encode(bufs[i], codec, threshold);
+      }
+      log.append(keys, bufs); // all or nothing
+      for (int i = 0; i < keys.length; ++i) {
+        String key = keys[i];
+        if (tx.op(key) != NanoTransaction.ADD) file.stale(key);
+        if (bufs[i] == null) {
+          cache.remove(key);
+          exclude(key);
+        } else {
+          cache.put(key, bufs[i], true);
+          if (tx.op(key) == NanoTransaction.ADD) include(key);
         }
+        index(key, tx.data(key), false);
       }
+      committed = true;
+    } finally {
+      for (String key : locked) locks.unlock(userID, key);
     }
   }
   /**
   open NanoDB.
   <br>If the specified fName from Constructor does not exist, it will be created with this fName.
+  <br>A NanoDB file of the former format (single file, 32 bit pointers) is upgraded to segments.
   @exception Exception thrown by JAVA
   */
   public void open() throws Exception {
     cache.clear();
     oCache.clear();
-    keysList = Collections.synchronizedList(new ArrayList<String>(512));
-    pointers = new ConcurrentHashMap<>(512);
-    sizes = new ConcurrentHashMap<>(512);
-    // load keysList, pointers and sizes
-    existed = (new File(fName)).exists();
-    raf = new RandomAccessFile(fName, "rw");
-    fLocked = raf.getChannel().lock();
+    added.clear();
+    deleted.clear();
+    // the keys are looked up lazily in the index of NanoDB file
+    file = new NanoFile(fName, cs, mapped, segSize);
+    file.open();
+    if (file.version() == 1) swap(file, file.merge(fName+"_tmp", new HashMap<>(), codec != null, null));
+    else file.purge(); // the segments left by a crash
     // start watchdog
     Runtime.getRuntime().addShutdownHook(new Thread() {
       public void run() { // watch for the unexpected
-        if (raf != null) try {
+        if (file != null) try {
            close( );
         } catch (Exception ex) { }
       }
     });
-    if (!existed) return;
-    cached = raf.length() < lim;
-    long pt  = (long)raf.readInt();
-    byte[] all = new byte[(int)(pt-4)];
-    raf.read(all); // get the KeysList block
-    // keys block-format: keyLength + dataLength + key = 2+4+n bytes
-    for (int kl, dl, d, i = 0; i < all.length; i += (6+kl)) {
-      // compute key Length and Data leng
-      kl = (((int)(all[i])   & 0xFF) * 0x100) |(((int)all[i+1]) & 0xFF);
-      dl = (((int)(all[i+2]) & 0xFF) * 0x1000000)|(((int)(all[i+3])& 0xFF) * 0x10000)|
-           (((int)(all[i+4]) & 0xFF) * 0x100) |(((int)all[i+5]) & 0xFF);
-      // cache keysList and pointers and sizes
-      String key = new String(all, i+6, kl, cs);
-      if (cached) { // cached
-        byte[] bb = new byte[dl];
-        raf.read(bb); // read
-        cache.put(key, bb);
+    // replay the committed changes of the log
+    log = new NanoLog(fName+"_log", cs, codec != null);
+    log.setSync(sync, syncMillis);
+    HashMap<String, byte[]> map = log.open();
+    for (String key : map.keySet()) {
+      byte[] bb = map.get(key);
+      if (bb == null) { // deleted
+        exclude(key);
+        cache.remove(key);
+      } else { // added or updated
+        include(key);
+        cache.put(key, bb, true);
       }
-      pointers.put(key, pt);
-      sizes.put(key, dl);
-      keysList.add(key);
-      pt += dl;
+      file.stale(key);
+    }
+    // prefetch the values in parallel if NanoDB file fits into the cache
+    if (file.length() < lim) {
+      NanoFile f = file;
+      Arrays.stream(f.keys()).parallel().forEach(key -> {
+        if (f.isStored(key)) try {
+          cache.admit(key, f.read(key, codec != null));
+        } catch (Exception ex) { } // read on demand
+      });
     }
+    committed = map.size() > 0;
+    for (NanoSecondary ix : indexes.values()) build(ix, true);
+    compactor = new NanoCompactor(this);
+    compactor.start();
   }
   /**
   close and save NanoDB.
   <br>If not autoCommit, all changes must be committed before close.
   <br>Otherwise all changes will be lost (empty NanoDB file if it must be created)
+  <br>The committed changes are already in the log. Only if the log exceeds the cache limit
+  <br>it is merged into a fresh NanoDB file (checkpoint).
   @exception Exception thrown by JAVA
   */
   public void close() throws Exception {
-    if (!committed) {
-      fLocked.release();
-      raf.close();
-    } else { // committed, rollback the Uncommitted
-      if (committed && oCache.size() > 0) { // something in oCache
-        List<String> keys = new ArrayList<>(oCache.keySet());
-        for (String key:keys) { // recover the uncommitted
-          byte[] bb = oCache.remove(key);
-          if (bb.length > 0) { // It's update
-            if (cache.containsKey(key)) cache.replace(key, bb);
-            else { // It's delete key
-              keysList.add(key);
-              cache.put(key, bb);
-            }
-          } else { // It's add
-            cache.remove(key);
-            keysList.remove(key);
-          }
+    compactor.stop();
+    if (committed && log.length() > lim) compact(); // merge the log into NanoDB file
+    long logLength = log.length();
+    log.close();
+    file.close();
+    File mf = new File(fName);
+    for (NanoSecondary ix : indexes.values()) { // only committed data: valid for the closed files
+      ix.save(fName+"_ix_"+ix.name(), cs, file.stamp(), mf.length(), mf.lastModified(), logLength);
+      ix.clear();
+    }
+    locks.clear();
+    added.clear();
+    deleted.clear();
+    oCache.clear();
+    cache.clear();
+    file = null;
+  }
+  /**
+  compact NanoDB. The live records and the committed changes of the log are merged into a fresh
+  <br>NanoDB file which replaces the old one. Readers are never blocked and the changes committed
+  <br>in the meantime stay in the log.
+  @return long, the reclaimed bytes
+  @exception Exception thrown by JAVA
+  */
+  public long compact() throws Exception {
+    merging.lock(); // one at a time
+    try {
+      if (log.length() == 0) return 0;
+      return merge(null);
+    } finally {
+      merging.unlock();
+    }
+  }
+  /**
+  bulkLoad new records directly into a fresh NanoDB file, e.g. to create a large NanoDB.
+  <br>The records bypass locks, cache and log: they are serialized and compressed in batches on all cores
+  <br>and written sequentially into fresh segments together with a compaction. The keys must be new.
+  <br>Readers and committers are not blocked.
+  @param entries Stream of key and value (byte array or serializable object)
+  @return long, number of the loaded records
+  @exception Exception thrown by JAVA
+  */
+  public long bulkLoad(Stream<? extends Map.Entry<String, ?>> entries) throws Exception {
+    AtomicLong count = new AtomicLong();
+    Set<String> revived = ConcurrentHashMap.newKeySet(); // deleted before
+    Iterator<? extends Map.Entry<String, ?>> it = entries.sequential().peek(e -> {
+      if (exists(e.getKey())) throw new IllegalArgumentException(e.getKey()+" exists.");
+      if (deleted.contains(e.getKey())) revived.add(e.getKey());
+      count.incrementAndGet();
+    }).iterator();
+    merging.lock();
+    try {
+      merge(new NanoLoader(it, codec, threshold));
+    } catch (IllegalArgumentException ex) {
+      throw new Exception(ex.getMessage());
+    } finally {
+      merging.unlock();
+    }
+    deleted.removeAll(revived);
+    for (NanoSecondary ix : indexes.values()) build(ix, false);
+    return count.get();
+  }
+  /**
+  snapshot of the committed data at this point in time, e.g. for long scans or reports.
+  <br>It's not blocked by locks, commits or compactions and it must be closed after use.
+  @return NanoSnapshot
+  @exception Exception thrown by JAVA
+  */
+  public NanoSnapshot snapshot() throws Exception {
+    while (true) {
+      NanoFile f = file;
+      if (f.retain()) {
+        HashMap<String, byte[]> map;
+        try {
+          map = log.read(); // not cut meanwhile
+        } catch (Exception ex) {
+          f.release();
+          throw ex;
         }
+        // the log is consistent with f if f was not replaced meanwhile
+        if (f == file) return new NanoSnapshot(f, map, codec != null);
+        f.release();
       }
-      if (cache.size() > 0) {
-        String tmp = String.format("%s_tmp", fName);
-        if (!existed || cached) {
-          fLocked.release();
-          raf.close(); 
-          tmp = fName; // this fName
-          // data in cache: so delete
-          if (cached) (new File(fName)).delete();
-        }
-        ByteArrayOutputStream bao = new ByteArrayOutputStream(65536);
-        RandomAccessFile rTmp = new RandomAccessFile(tmp, "rw");
-        FileLock fL = rTmp.getChannel().lock();
-        // the key block
-        for (String key : keysList) {
-          int kl = key.length();
-          int dl = cache.containsKey(key)? cache.get(key).length:sizes.get(key);
-          bao.write(new byte[] { (byte)(kl / 0x100),
-                                 (byte) kl,
-                                 (byte)(dl / 0x1000000),
-                                 (byte)(dl / 0x10000),
-                                 (byte)(dl / 0x100),
-                                 (byte) dl
-                               }
-                   );
-          bao.write(key.getBytes(cs));
-        }
-        bao.flush();
-        long pt = 4+bao.size();
-        rTmp.write(new byte[] {(byte)((int)pt/ 0x1000000),
-                               (byte)((int)pt / 0x10000),
-                               (byte)((int)pt / 0x100),
-                               (byte) (int)pt
-                              }
-                  );
-        rTmp.write(bao.toByteArray());
-        bao.close(); // release bao
-        // now the data block
-        for (String key : keysList) {
-          byte[] bb = cache.get(key);
-          if (bb == null) {
-            bb = new byte[sizes.get(key)];           
-            raf.seek(pointers.get(key));
-            raf.read(bb);
+      Thread.onSpinWait();
+    }
+  }
+  /**
+  getGarbage returns the size of the dead records and the log (to be merged)
+  @return long, the garbage in bytes
+  @exception Exception thrown by JAVA
+  */
+  public long getGarbage() throws Exception {
+    return file.garbage() + log.length();
+  }
+  /**
+  getSize returns the size of NanoDB file and the log
+  @return long, the size in bytes
+  @exception Exception thrown by JAVA
+  */
+  public long getSize() throws Exception {
+    return file.length() + log.length();
+  }
+  /**
+  getCompactor returns the background compactor of this NanoDB (thresholds and counters)
+  @return NanoCompactor
+  */
+  public NanoCompactor getCompactor() {
+    return compactor;
+  }
+  // merge the log (and the loaded records) into a fresh NanoDB file. Return the reclaimed bytes
+  private long merge(Iterator<Map.Entry<String, byte[]>> loaded) throws Exception {
+    NanoFile old = file;
+    long mark = log.length(), len = old.length() + mark;
+    HashMap<String, byte[]> map = log.read(0, mark);
+    NanoFile nf = old.merge(fName+"_tmp", map, codec != null, loaded);
+    swap(old, nf);
+    log.cut(mark);
+    // the merged changes are on disk: they can be evicted now
+    for (String key : map.keySet()) {
+      byte[] bb = map.get(key);
+      if (bb != null && !oCache.containsKey(key)) cache.clean(key, bb);
+      if (bb != null && nf.contains(key)) added.remove(key); // known by the new file
+    }
+    // the records committed in the meantime
+    for (String key : log.read(0, log.length()).keySet()) nf.stale(key);
+    return len - nf.length();
+  }
+  // replace the old file by the merged file nf and delete the replaced segments
+  private void swap(NanoFile old, NanoFile nf) throws Exception {
+    try { // the readers of the old file keep going
+      move(fName+"_tmp", fName);
+      move(fName+"_tmp_idx", fName+"_idx");
+      nf.open();
+      file = nf;
+      old.replace(); // closed by the last snapshot
+    } catch (IOException ex) { // the old file cannot be replaced while it's open or mapped (e.g. Windows)
+      swapping = true;
+      try {
+        old.close(); // and unmapped: the readers retry with the new file
+        move(fName+"_tmp", fName); // maybe moved by the first try
+        move(fName+"_tmp_idx", fName+"_idx");
+        nf.open();
+        file = nf;
+      } finally {
+        swapping = false;
+      }
+    }
+    nf.purge(); // a segment still mapped by a snapshot is deleted by a later purge()
+  }
+  // move src to dst, replacing dst. Done if src is already moved (a retried swap)
+  private static void move(String src, String dst) throws IOException {
+    Path s = Paths.get(src), d = Paths.get(dst);
+    if (Files.notExists(s) && Files.exists(d)) return;
+    Files.move(s, d, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  // check key for reading: known
+  private void checkRead(String key) throws Exception {
+    if (!exists(key)) throw new Exception("Unknown "+key);
+  }
+  // the last committed data of key if it's modified (uncommitted) by another user, null otherwise
+  private byte[] committed(String userID, String key) throws Exception {
+    byte[] bb = oCache.get(key);
+    if (bb == null) return null;
+    if (locks.isOwner(userID, key)) return null; // own changes
+    if (bb.length == 0) throw new Exception("Unknown "+key); // uncommitted add
+    return codec != null? NanoCodecs.decode(bb):bb;
+  }
+  // update the secondary indexes of key. buf: data (encoded if encoded), null: key is removed
+  private void index(String key, byte[] buf, boolean encoded) {
+    if (indexes.isEmpty()) return;
+    try {
+      if (buf != null && encoded && codec != null) buf = NanoCodecs.decode(buf);
+    } catch (Exception ex) {
+      buf = null;
+    }
+    for (NanoSecondary ix : indexes.values())
+      if (buf != null) ix.put(key, buf);
+      else ix.remove(key);
+  }
+  // load the persisted index (if valid and load) or build it from the committed records in parallel
+  private void build(NanoSecondary ix, boolean load) throws Exception {
+    File mf = new File(fName);
+    if (load && ix.load(fName+"_ix_"+ix.name(), cs, file.stamp(), mf.length(), mf.lastModified(), log.length())) return;
+    ix.clear();
+    Set<String> keys = new HashSet<>(getKeys());
+    keys.addAll(oCache.keySet()); // uncommitted deletes
+    keys.parallelStream().forEach(key -> {
+      try {
+        byte[] buf = oCache.get(key); // the last committed data of an uncommitted change
+        if (buf == null) buf = current(key);
+        else if (buf.length == 0) return; // uncommitted add
+        ix.put(key, codec != null? NanoCodecs.decode(buf):buf);
+      } catch (Exception ex) { } // deleted meanwhile
+    });
+  }
+  // key exists: added or (in NanoDB file and not deleted)
+  private boolean exists(String key) {
+    if (added.contains(key)) return true;
+    if (deleted.contains(key)) return false;
+    for (NanoFile f = file; ; f = file) { // a file closed by a swap doesn't contain any key
+      if (f.contains(key)) return true;
+      if (f == file && !swapping) return false;
+      Thread.onSpinWait();
+    }
+  }
+  // include key (added or restored)
+  private void include(String key) {
+    added.add(key);
+    deleted.remove(key);
+  }
+  // exclude key (deleted or rollbacked add)
+  private void exclude(String key) {
+    deleted.add(key);
+    added.remove(key);
+  }
+  // the keys in key order from fromKey while in: the ordered keys of the file merged with the added keys.
+  // A compaction in the meantime moves added keys into the file: the scan is repeated with the new file.
+  private ArrayList<String> scan(String fromKey, Predicate<String> in, int limit) {
+    while (true) {
+      NanoFile f = file;
+      if (!f.enter()) { // closed by a swap
+        if (f == file && !swapping) return new ArrayList<>();
+        Thread.onSpinWait();
+        continue;
+      }
+      ArrayList<String> list = new ArrayList<>(Math.min(limit, 1024));
+      try { // the keys of f are read from its mapped index
+        Iterator<String> fi = f.keys(fromKey), ai = (fromKey != null? added.tailSet(fromKey, true):added).iterator();
+        String k = next(fi), a = ai.hasNext()? ai.next():null;
+        while (list.size() < limit && (k != null || a != null)) {
+          String key;
+          if (a == null || k != null && k.compareTo(a) < 0) {
+            key = k;
+            k = next(fi);
+          } else {
+            if (a.equals(k)) k = next(fi);
+            key = a;
+            a = ai.hasNext()? ai.next():null;
           }
-          // save data
-          rTmp.write(bb, 0, bb.length);
+          if (!in.test(key)) break;
+          list.add(key);
         }
-        fL.release();
-        rTmp.close();
-        if (existed && !cached) {
-          fLocked.release();
-          raf.close();
-          File fi = new File(fName);
-          fi.delete(); // delete the old
-          TimeUnit.MICROSECONDS.sleep(20);
-          (new File(tmp)).renameTo(fi);
-        } 
+      } finally {
+        f.exit();
       }
+      if (file == f) return list;
+    }
+  }
+  // the next live key of the file (not deleted, not added again)
+  private String next(Iterator<String> fi) {
+    while (fi.hasNext()) {
+      String key = fi.next();
+      if (!deleted.contains(key) && !added.contains(key)) return key;
+    }
+    return null;
+  }
+  // true if the log exceeds the cache limit (its data is pinned in cache)
+  boolean isLogFull() throws Exception {
+    return log.length() > lim;
+  }
+  // the data of key (decompressed): from cache or from NanoDB file (admitted to cache)
+  private byte[] fetch(String key) throws Exception {
+    byte[] buf = cache.get(key);
+    if (buf == null) {
+      buf = readData(key); // from file
+      cache.admit(key, buf);
+    }
+    return codec != null? NanoCodecs.decode(buf):buf;
+  }
+  // the current data of key: from cache or (if evicted) from NanoDB file
+  private byte[] current(String key) throws Exception {
+    byte[] buf = cache.get(key);
+    return buf != null? buf:readData(key);
+  }
+  // read data of key from NanoDB file. Retry if the file was swapped by compact()
+  private byte[] readData(String key) throws Exception {
+    for (NanoFile f = file; ; f = file) try {
+      return f.read(key, codec != null);
+    } catch (Exception ex) {
+      if (f == file && !swapping) throw ex;
+      Thread.onSpinWait();
     }
-    keysLocked.clear();
-    lockedList.clear();
-    keysList.clear();
-    pointers.clear();
-    oCache.clear();
-    sizes.clear();
-    cache.clear();
-    raf = null;
   }
   /**
-  removeLockedKeys of userID
+  removeLockedKeys of userID: its locked keys are released, its waiting lock requests fail
   @param userID String
   */
   public void removeLockedKeys(String userID) {
-    List<String> kList = keysLocked.remove(userID); // get locked keyList
-    if (kList != null) for (String key:kList) lockedList.remove(key);
+    locks.releaseAll(userID);
   }
   //---------------------------------------------------------------------------------------
-  private ConcurrentHashMap<String, List<String>> keysLocked =  new ConcurrentHashMap<>(256);
-  private volatile boolean existed = false, cached = false, committed = false, auto = false;
-  private List<String> lockedList = Collections.synchronizedList(new ArrayList<>());
+  private final ReentrantLock merging = new ReentrantLock(); // compaction: long I/O, no monitor
+  private volatile boolean swapping = false, committed = false, auto = false, mapped = true, offHeap = false;
+  private NanoLocks locks = new NanoLocks();
+  private ConcurrentHashMap<String, NanoSecondary> indexes = new ConcurrentHashMap<>();
   private ConcurrentHashMap<String, byte[]> oCache =  new ConcurrentHashMap<>(256);
-  private ConcurrentHashMap<String, byte[]> cache = new ConcurrentHashMap<>(256);
-  private ConcurrentHashMap<String, Integer> sizes;
-  private ConcurrentHashMap<String, Long> pointers;
-  private List<String> keysList;
-  private RandomAccessFile raf;
-  private int lim = 0x200000;
-  private FileLock fLocked;
+  private NanoCache cache = new NanoCache(0x200000);
+  private Set<String> deleted = ConcurrentHashMap.newKeySet();
+  private ConcurrentSkipListSet<String> added = new ConcurrentSkipListSet<>(); // in key order for the scans
+  private NanoCompactor compactor;
+  private volatile NanoFile file;
+  private NanoLog log;
+  private long segSize = 0x40000000L, syncMillis = 1000;
+  private int lim = 0x200000, threshold, sync = NanoLog.BATCH;
+  private NanoCodec codec;
   private String fName;
   private Charset cs;
 }
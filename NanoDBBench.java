@@ -0,0 +1,490 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.IntStream;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.lang.management.ManagementFactory;
+import nanodb.NanoDB;
+import nanodb.NanoLog;
+import nanodb.NanoDBNio;
+import nanodb.NanoDBWorker;
+import nanodb.NanoDBManager;
+import nanodb.NanoDBConnect;
+// @author Joe T. Schwarz (c)
+// Usage: java NanoDBBench read [records] [max. threads]
+//        java NanoDBBench startup [keys,keys,...]
+//        java NanoDBBench footprint [keys]
+//        java NanoDBBench commit [max. threads]
+//        java NanoDBBench load [records]
+//        java NanoDBBench parse [records] [max. threads]
+//        java NanoDBBench lock [max. threads]
+//        java NanoDBBench server [connections,connections,...]
+//        java NanoDBBench pipeline [records] [latency ms]
+public class NanoDBBench {
+  public NanoDBBench(String... a) throws Exception {
+    dir = Files.createTempDirectory("NanoDBBench").toFile();
+    String mode = a.length > 0? a[0]:"read";
+    if ("read".equals(mode)) read(a.length > 1? Integer.parseInt(a[1]):100000,
+                                  a.length > 2? Integer.parseInt(a[2]):16);
+    else if ("startup".equals(mode)) startup(a.length > 1? a[1]:"10000,1000000,10000000");
+    else if ("footprint".equals(mode)) footprint(a.length > 1? Integer.parseInt(a[1]):1000000);
+    else if ("commit".equals(mode)) commit(a.length > 1? Integer.parseInt(a[1]):16);
+    else if ("load".equals(mode)) load(a.length > 1? Integer.parseInt(a[1]):1000000);
+    else if ("parse".equals(mode)) parse(a.length > 1? Integer.parseInt(a[1]):1000000,
+                                         a.length > 2? Integer.parseInt(a[2]):16);
+    else if ("lock".equals(mode)) lock(a.length > 1? Integer.parseInt(a[1]):64);
+    else if ("server".equals(mode)) server(a.length > 1? a[1]:"100,1000,10000");
+    else if ("pipeline".equals(mode)) pipeline(a.length > 1? Integer.parseInt(a[1]):2000,
+                                               a.length > 2? Integer.parseInt(a[2]):2);
+    else System.out.println("Unknown mode "+mode);
+    for (File f : dir.listFiles()) f.delete();
+    dir.delete();
+    System.exit(0);
+  }
+  // read throughput of uncached NanoDB by 1, 2, 4, ... threads (mapped and FileChannel)
+  private void read(int records, int maxThreads) throws Exception {
+    String fName = create(records, 1024);
+    for (boolean mapped : new boolean[] { true, false }) {
+      NanoDB nano = new NanoDB(fName);
+      nano.setCacheLimit(0x100000); // 1 MB: uncached
+      nano.setMapped(mapped);
+      nano.open();
+      System.out.println((nano.isMapped()? "MappedByteBuffer":"FileChannel")+" reads, "+records+" records:");
+      for (int t = 1; t <= maxThreads; t += t) {
+        AtomicLong reads = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(t);
+        long t0 = System.nanoTime(), end = t0 + 2000000000L; // 2 seconds
+        for (int i = 0; i < t; ++i) pool.execute(() -> {
+          ThreadLocalRandom rnd = ThreadLocalRandom.current();
+          try {
+            while (System.nanoTime() < end) {
+              nano.readObject("Bench", "Key"+rnd.nextInt(records));
+              reads.incrementAndGet();
+            }
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          }
+        });
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        double d = (double)(System.nanoTime()-t0)/1000000000;
+        System.out.println(String.format("%4d threads: %12.0f reads/sec.", t, reads.get()/d));
+      }
+      nano.close();
+    }
+  }
+  // open() time with the persistent index and without (the key block is parsed and the index rebuilt)
+  private void startup(String counts) throws Exception {
+    for (String c : counts.split(",")) {
+      int records = Integer.parseInt(c.trim());
+      String fName = create(records, 16);
+      long t0 = System.nanoTime();
+      NanoDB nano = new NanoDB(fName);
+      nano.open();
+      nano.readObject("Bench", "Key"+(records-1));
+      double idx = (double)(System.nanoTime()-t0)/1000000;
+      nano.close();
+      new File(fName+"_idx").delete();
+      t0 = System.nanoTime();
+      nano = new NanoDB(fName);
+      nano.open();
+      nano.readObject("Bench", "Key"+(records-1));
+      double blk = (double)(System.nanoTime()-t0)/1000000;
+      nano.close();
+      System.out.println(String.format("%10d keys: open %10.1f ms with index, %10.1f ms without index",
+                                       records, idx, blk));
+      for (File f : dir.listFiles()) f.delete();
+    }
+  }
+  // open() time without index (the key block is parsed in parallel) by ForkJoinPools of 1, 2, 4, ... threads
+  private void parse(int records, int maxThreads) throws Exception {
+    String fName = create(records, 16);
+    System.out.println(records+" keys, "+Runtime.getRuntime().availableProcessors()+" cores:");
+    for (int t = 1; t <= maxThreads; t += t) {
+      new File(fName+"_idx").delete();
+      ForkJoinPool pool = new ForkJoinPool(t); // the parallel parsing runs in the pool of its caller
+      long t0 = System.nanoTime();
+      NanoDB nano = pool.submit(() -> {
+        NanoDB n = new NanoDB(fName);
+        n.open();
+        return n;
+      }).get();
+      double d = (double)(System.nanoTime()-t0)/1000000;
+      nano.close();
+      pool.shutdown();
+      System.out.println(String.format("%4d threads: open %10.1f ms without index", t, d));
+    }
+  }
+  // heap bytes per million keys: boxed maps (String list, Long pointers, Integer sizes), key directory, index
+  private void footprint(int records) throws Exception {
+    String fName = create(records, 16);
+    long base = used();
+    ArrayList<String> list = new ArrayList<>(512);
+    ConcurrentHashMap<String, Long> pointers = new ConcurrentHashMap<>(512);
+    ConcurrentHashMap<String, Integer> sizes = new ConcurrentHashMap<>(512);
+    for (int i = 0; i < records; ++i) {
+      String key = "Key"+i;
+      list.add(key);
+      pointers.put(key, 16L * i);
+      sizes.put(key, 16);
+    }
+    long boxed = used() - base;
+    System.out.println(String.format("%10d keys (%d, %d, %d)", records, list.size(), pointers.size(), sizes.size()));
+    list = null;
+    pointers = null;
+    sizes = null;
+    new File(fName+"_idx").delete();
+    base = used();
+    NanoDB nano = new NanoDB(fName);
+    nano.open(); // without index: the key block is parsed into the key directory
+    long dir = used() - base;
+    nano.close();
+    base = used();
+    nano = new NanoDB(fName);
+    nano.open(); // with the (rebuilt) mapped index
+    long idx = used() - base;
+    nano.close();
+    System.out.println(String.format("Heap per million keys: %10.1f MB boxed maps\n"+
+                                     "                       %10.1f MB key directory\n"+
+                                     "                       %10.1f MB mapped index",
+                                     boxed * 1e6 / records / 0x100000, dir * 1e6 / records / 0x100000,
+                                     idx * 1e6 / records / 0x100000));
+  }
+  // commit throughput, batch size and latency of the group commit by 1, 2, 4, ... threads per fsync policy
+  private void commit(int maxThreads) throws Exception {
+    String fName = dir.getPath()+File.separator+"Bench";
+    String[] names = { "NEVER", "BATCH", "INTERVAL" };
+    for (int policy : new int[] { NanoLog.NEVER, NanoLog.BATCH, NanoLog.INTERVAL }) {
+      System.out.println("fsync "+names[policy]+":");
+      for (int t = 1; t <= maxThreads; t += t) {
+        NanoDB nano = new NanoDB(fName);
+        nano.setSync(policy, 1000);
+        nano.open();
+        nano.autoCommit(true);
+        AtomicLong commits = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(t);
+        long t0 = System.nanoTime(), end = t0 + 2000000000L; // 2 seconds
+        for (int i = 0; i < t; ++i) {
+          String prefix = "T"+i+"-";
+          pool.execute(() -> {
+            byte[] buf = new byte[256];
+            try {
+              for (int n = 0; System.nanoTime() < end; ++n) {
+                nano.addObject("Bench", prefix+n, buf);
+                commits.incrementAndGet();
+              }
+            } catch (Exception ex) {
+              ex.printStackTrace();
+            }
+          });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        double d = (double)(System.nanoTime()-t0)/1000000000;
+        NanoLog log = nano.getLog();
+        System.out.println(String.format("%4d threads: %10.0f commits/sec., %6.1f commits/batch, %6d fsyncs, "+
+                                         "latency %6d us avg. %8d us max.", t, commits.get()/d,
+                                         log.getBatchSize(), log.getSyncs(), log.getCommitTime(),
+                                         log.getMaxCommitTime()));
+        nano.close();
+        for (File f : dir.listFiles()) f.delete();
+      }
+    }
+  }
+  // lock/unlock throughput by 1, 2, 4, ... threads (users) on 16 and 1000 hot keys and on 1000000 keys.
+  // Stress check: every other lock waits (timeout), each holder counts itself as owner of its key:
+  // two owners of a key at once violate the mutual exclusion and fail the run.
+  private void lock(int maxThreads) throws Exception {
+    NanoDB nano = new NanoDB(dir.getPath()+File.separator+"Bench");
+    nano.open();
+    AtomicLong violations = new AtomicLong();
+    for (int keys : new int[] { 16, 1000, 1000000 }) {
+      System.out.println("lock/unlock, "+keys+" keys:");
+      AtomicIntegerArray owners = new AtomicIntegerArray(keys);
+      for (int t = 1; t <= maxThreads; t += t) {
+        AtomicLong locks = new AtomicLong(), fails = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(t);
+        long t0 = System.nanoTime(), end = t0 + 2000000000L; // 2 seconds
+        for (int i = 0; i < t; ++i) {
+          String userID = "User"+i;
+          pool.execute(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            long n = 0, f = 0;
+            for (; (n & 0xFF) != 0 || System.nanoTime() < end; ++n) {
+              int k = rnd.nextInt(keys);
+              String key = "Key"+k;
+              if ((n & 1) == 0? nano.lock(userID, key):nano.lock(userID, key, 1)) {
+                if (owners.incrementAndGet(k) != 1) violations.incrementAndGet(); // another owner
+                owners.decrementAndGet(k);
+                nano.unlock(userID, key);
+              } else ++f;
+            }
+            locks.addAndGet(n);
+            fails.addAndGet(f);
+          });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        double d = (double)(System.nanoTime()-t0)/1000000000;
+        System.out.println(String.format("%4d threads: %12.0f lock+unlock/sec., %6.2f%% locked by other, "+
+                                         "%d violations", t, locks.get()/d,
+                                         100.0 * fails.get() / Math.max(1, locks.get()), violations.get()));
+      }
+    }
+    nano.close();
+    if (violations.get() > 0) throw new Exception("FAILED: "+violations.get()+" keys were locked by 2 users at once");
+  }
+  // readObject throughput and p99 latency over loopback: a platform thread per connection, a virtual thread
+  // per connection (Java 21+) and the NIO event loops. Each connection has always one request in flight.
+  private void server(String counts) throws Exception {
+    create(10000, 100);
+    NanoDBManager mgr = new NanoDBManager(dir.getPath(), 0x4000000);
+    ExecutorService virtual = NanoDBWorker.newVirtualExecutor();
+    if (virtual == null) System.out.println("virtual threads: not available with JAVA "+
+                                            System.getProperty("java.version")+" (Java 21+)");
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (String c : counts.split(",")) {
+      int conns = Integer.parseInt(c.trim()), max = maxConnections();
+      if (conns > max) {
+        System.out.println(conns+" connections: max. "+max+" by the open files limit (ulimit -n)");
+        conns = max;
+      }
+      for (String mode : new String[] { "platform", "virtual", "nio" }) {
+        if ("virtual".equals(mode) && virtual == null) continue;
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0), 4096);
+        int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+        NanoDBNio nio = null;
+        ExecutorService pool = "virtual".equals(mode)? virtual:Executors.newCachedThreadPool();
+        if ("nio".equals(mode)) {
+          nio = new NanoDBNio(server, mgr, Math.min(4, cores), NanoDBNio.newExecutor(Math.max(64, 8 * cores), 4096));
+          nio.start();
+        } else {
+          Thread t = new Thread(() -> NanoDBWorker.serve(server, mgr, pool));
+          t.setDaemon(true);
+          t.start();
+        }
+        drive(mode, port, conns, Math.min(4, cores));
+        server.close();
+        if (nio != null) nio.stop();
+        if (pool != virtual) pool.shutdown();
+      }
+    }
+  }
+  // drive conns connections by threads selectors for 5 seconds (after 1 second warm-up)
+  private void drive(String mode, int port, int conns, int threads) throws Exception {
+    SocketChannel[] socs = new SocketChannel[conns];
+    byte[] db = "Bench".getBytes();
+    int reply = 0;
+    for (int i = 0; i < conns; ++i) {
+      socs[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+      socs[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+      socs[i].write(frame(ByteBuffer.allocate(5+db.length+5).put((byte)0).putShort((short)db.length)
+                                     .putShort((short)5).put(db).put("UTF-8".getBytes()).flip()));
+      socs[i].read(ByteBuffer.allocate(256)); // userID
+      if (i == 0) { // the reply length of readObject
+        socs[0].write(request(db, "Key0"));
+        reply = socs[0].read(ByteBuffer.allocate(65536));
+      }
+    }
+    AtomicLong ops = new AtomicLong();
+    List<long[]> lats = Collections.synchronizedList(new ArrayList<>());
+    long t0 = System.nanoTime(), start = t0 + 1000000000L, end = start + 5000000000L;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; ++t) {
+      int first = t, size = reply;
+      pool.execute(() -> {
+        long[] lat = new long[4096];
+        int n = 0;
+        try (Selector sel = Selector.open()) {
+          ThreadLocalRandom rnd = ThreadLocalRandom.current();
+          for (int i = first; i < conns; i += threads) {
+            socs[i].configureBlocking(false);
+            long[] sent = { System.nanoTime() };
+            socs[i].register(sel, SelectionKey.OP_READ, new Object[] { ByteBuffer.allocate(size), sent });
+            socs[i].write(request(db, "Key"+rnd.nextInt(10000)));
+          }
+          while (System.nanoTime() < end) {
+            if (sel.select(100) == 0) continue;
+            Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+            while (it.hasNext()) {
+              SelectionKey key = it.next();
+              it.remove();
+              Object[] att = (Object[])key.attachment();
+              ByteBuffer bb = (ByteBuffer)att[0];
+              long[] sent = (long[])att[1];
+              SocketChannel soc = (SocketChannel)key.channel();
+              if (soc.read(bb) < 0) throw new EOFException();
+              if (bb.hasRemaining()) continue;
+              long now = System.nanoTime();
+              if (now >= start) {
+                if (n == lat.length) lat = Arrays.copyOf(lat, 2 * n);
+                lat[n++] = now - sent[0];
+              }
+              bb.clear();
+              sent[0] = now;
+              ByteBuffer req = request(db, "Key"+rnd.nextInt(10000));
+              while (req.hasRemaining()) soc.write(req);
+            }
+          }
+        } catch (Exception ex) {
+          System.out.println(mode+": "+ex);
+        }
+        lats.add(Arrays.copyOf(lat, n));
+        ops.addAndGet(n);
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(1, TimeUnit.MINUTES);
+    for (SocketChannel soc : socs) soc.close();
+    long[] all = lats.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+    double d = (double)(System.nanoTime() - start) / 1000000000;
+    System.out.println(String.format("%6d connections, %-8s: %10.0f reads/sec., p99 %8.2f ms", conns, mode,
+                                     ops.get() / d, all.length > 0? all[(int)(all.length * 0.99)] / 1000000.0:0));
+    Thread.sleep(500); // the server closes the connections
+  }
+  // reads over a link with latency (a delaying proxy): readObject one by one and pipelined by readObjects
+  private void pipeline(int records, int latency) throws Exception {
+    create(records, 4096);
+    NanoDBManager mgr = new NanoDBManager(dir.getPath(), 0x4000000);
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress("localhost", 0));
+    NanoDBNio nio = new NanoDBNio(server, mgr, 1, NanoDBNio.newExecutor(4, 256));
+    nio.start();
+    NanoDBConnect con = new NanoDBConnect("localhost", proxy(server, latency));
+    con.open("Bench", "UTF-8");
+    List<String> keys = new ArrayList<>(records);
+    for (int i = 0; i < records; ++i) keys.add("Key"+i);
+    long t0 = System.nanoTime();
+    for (String key : keys) con.readObject("Bench", key);
+    double seq = (double)(System.nanoTime()-t0)/1000000000;
+    t0 = System.nanoTime();
+    con.readObjects("Bench", keys);
+    double pipe = (double)(System.nanoTime()-t0)/1000000000;
+    double mb = records * 4096.0 / 0x100000;
+    System.out.println(String.format("%d reads of 4 KB, %d ms latency each way:\n"+
+                                     "  readObject  %8.2f sec. (%10.0f reads/sec., %8.2f MB/sec.)\n"+
+                                     "  readObjects %8.2f sec. (%10.0f reads/sec., %8.2f MB/sec.)",
+                                     records, latency, seq, records / seq, mb / seq, pipe, records / pipe, mb / pipe));
+    con.disconnect();
+    nio.stop();
+  }
+  // a proxy to server delaying the bytes of each direction by latency milliseconds. Returns its port
+  private int proxy(ServerSocketChannel server, int latency) throws Exception {
+    ServerSocketChannel ps = ServerSocketChannel.open();
+    ps.bind(new InetSocketAddress("localhost", 0));
+    Thread t = new Thread(() -> {
+      try {
+        SocketChannel c = ps.accept(), s = SocketChannel.open(server.getLocalAddress());
+        relay(c, s, latency);
+        relay(s, c, latency);
+      } catch (Exception ex) { }
+    });
+    t.setDaemon(true);
+    t.start();
+    return ((InetSocketAddress)ps.getLocalAddress()).getPort();
+  }
+  // forward the bytes of from to to after latency milliseconds
+  private void relay(SocketChannel from, SocketChannel to, int latency) {
+    LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>(); // due time, bytes
+    Thread reader = new Thread(() -> {
+      try {
+        ByteBuffer bb = ByteBuffer.allocate(65536);
+        for (int n = from.read(bb); n > 0; n = from.read(bb.clear()))
+          queue.put(new Object[] { System.nanoTime() + latency * 1000000L, Arrays.copyOf(bb.array(), n) });
+      } catch (Exception ex) { }
+    });
+    Thread writer = new Thread(() -> {
+      try {
+        while (true) {
+          Object[] e = queue.take();
+          long wait = (Long)e[0] - System.nanoTime();
+          if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+          ByteBuffer bb = ByteBuffer.wrap((byte[])e[1]);
+          while (bb.hasRemaining()) to.write(bb);
+        }
+      } catch (Exception ex) { }
+    });
+    reader.setDaemon(true);
+    writer.setDaemon(true);
+    reader.start();
+    writer.start();
+  }
+  // readObject request: cmd, dbName length, key length, dbName, key
+  private ByteBuffer request(byte[] db, String key) {
+    byte[] kb = key.getBytes();
+    return frame(ByteBuffer.allocate(5+db.length+kb.length).put((byte)10).putShort((short)db.length)
+                           .putShort((short)kb.length).put(db).put(kb).flip());
+  }
+  // one frame: length, version 1, flags, opcode, request id, payload
+  private ByteBuffer frame(ByteBuffer payload) {
+    return ByteBuffer.allocate(11+payload.remaining()).putInt(payload.remaining()).put((byte)1).put((byte)0)
+                     .put(payload.get(0)).putInt(1).put(payload).flip();
+  }
+  // max. connections (client + server socket) by the open files limit
+  private int maxConnections() {
+    Object os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+      com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean)os;
+      return (int)Math.max(1, (unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - 256) / 2);
+    }
+    return Integer.MAX_VALUE;
+  }
+  // load time of records by addObject (autoCommit) and by bulkLoad
+  private void load(int records) throws Exception {
+    String fName = dir.getPath()+File.separator+"Bench";
+    byte[] buf = new byte[256];
+    long t0 = System.nanoTime();
+    NanoDB nano = new NanoDB(fName);
+    nano.setSync(NanoLog.NEVER, 0);
+    nano.open();
+    nano.autoCommit(true);
+    for (int i = 0; i < records; ++i) nano.addObject("Bench", "Key"+i, buf);
+    nano.compact();
+    nano.close();
+    double add = (double)(System.nanoTime()-t0)/1000000000;
+    for (File f : dir.listFiles()) f.delete();
+    t0 = System.nanoTime();
+    nano = new NanoDB(fName);
+    nano.open();
+    nano.bulkLoad(IntStream.range(0, records).mapToObj(i -> new AbstractMap.SimpleEntry<>("Key"+i, buf)));
+    nano.close();
+    double bulk = (double)(System.nanoTime()-t0)/1000000000;
+    System.out.println(String.format("%10d records: addObject %8.2f sec. (%10.0f records/sec.)\n"+
+                                     "                   bulkLoad  %8.2f sec. (%10.0f records/sec.)",
+                                     records, add, records / add, bulk, records / bulk));
+  }
+  // used heap after GC
+  private long used() throws Exception {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+  // create a NanoDB with records of the given size
+  private String create(int records, int size) throws Exception {
+    String fName = dir.getPath()+File.separator+"Bench";
+    NanoDB nano = new NanoDB(fName);
+    nano.open();
+    nano.autoCommit(true);
+    byte[] buf = new byte[size];
+    for (int i = 0; i < records; ++i) {
+      Arrays.fill(buf, (byte)i);
+      nano.addObject("Bench", "Key"+i, buf.clone());
+    }
+    nano.compact();
+    nano.close();
+    return fName;
+  }
+  private File dir;
+  //
+  public static void main(String... a) throws Exception {
+    new NanoDBBench(a);
+  }
+}
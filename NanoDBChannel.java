@@ -0,0 +1,92 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+/**
+NanoDBChannel, the reply channel of a non-blocking SocketChannel (see NanoDBNio).
+<br>The writes return when all is written. If the socket buffer is full, the writer waits on a
+<br>pooled temporary Selector for OP_WRITE (max. timeout): the event loops are never blocked.
+@author Joe T. Schwarz (c)
+*/
+class NanoDBChannel implements GatheringByteChannel {
+  /**
+  constructor
+  @param soc SocketChannel in non-blocking mode
+  @param timeout long, max. waiting time in milliseconds for a slow client
+  */
+  NanoDBChannel(SocketChannel soc, long timeout) {
+    this.soc = soc;
+    this.timeout = timeout;
+  }
+  //
+  public int write(ByteBuffer src) throws IOException {
+    int n = 0;
+    while (src.hasRemaining()) {
+      int w = soc.write(src);
+      if (w == 0) await();
+      n += w;
+    }
+    return n;
+  }
+  //
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    long n = 0;
+    for (int i = offset, end = offset + length; i < end; ) {
+      if (!srcs[i].hasRemaining()) ++i;
+      else {
+        long w = soc.write(srcs, i, end - i);
+        if (w == 0) await();
+        n += w;
+      }
+    }
+    return n;
+  }
+  //
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+  /**
+  transfer count bytes of src at position to the socket (FileChannel.transferTo(): no copy on the JAVA heap)
+  @param src FileChannel
+  @param position long
+  @param count long
+  @return long, count
+  @exception IOException thrown by JAVA
+  */
+  long transferFrom(FileChannel src, long position, long count) throws IOException {
+    for (long n = 0; n < count; ) {
+      long w = src.transferTo(position + n, count - n, soc);
+      if (w == 0) await();
+      n += w;
+    }
+    return count;
+  }
+  //
+  public boolean isOpen() {
+    return soc.isOpen();
+  }
+  //
+  public void close() throws IOException {
+    soc.close();
+  }
+  // wait until soc is writable
+  private void await() throws IOException {
+    Selector sel = selectors.poll();
+    if (sel == null) sel = Selector.open();
+    try {
+      SelectionKey key = soc.register(sel, SelectionKey.OP_WRITE);
+      int n = sel.select(timeout);
+      key.cancel();
+      sel.selectNow(); // deregister
+      if (n == 0) throw new IOException("Write timeout");
+    } finally {
+      selectors.offer(sel);
+    }
+  }
+  //---------------------------------------------------------------------------------------
+  private static final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<>();
+  private SocketChannel soc;
+  private long timeout;
+}
@@ -178,7 +178,10 @@ public class NanoDBClient extends JFrame {
           jta.append("Read & Update "+keys.size()+" Keys\n");
           long t0 = System.nanoTime();
           for (String key : keys) {
-            con.lock(nanoDB, key);
+            if (!con.lock(nanoDB, key, 1000)) {
+              jta.append(key+" is locked by other.\n");
+              continue;
+            }
             con.updateObject(nanoDB, key, con.readObject(nanoDB, key));
             con.commit(nanoDB, key);
             con.unlock(nanoDB, key);
@@ -455,4 +458,4 @@ public class NanoDBClient extends JFrame {
     UIManager.setLookAndFeel("com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel");
     new NanoDBClient( );
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
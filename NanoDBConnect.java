@@ -4,12 +4,20 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 //
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 /**
 NanoDBConnect. Interface for NanoDB's clients to NanoDBServer
+<br>The requests and replies are framed (see NanoFrame): a large object is streamed in chunks
+<br>and a serialized object is deserialized while its frames are received.
+<br>Pipelining: each request carries an id and the replies are matched by id by the reader thread.
+<br>Many requests can be in flight on one connection (readObjectAsync(), readObjects()): a batch of reads
+<br>runs at bandwidth instead of one round trip per read. The blocking methods are thread-safe.
+<br>Don't call a blocking method in a callback of a CompletableFuture (it runs on the reader thread).
 @author Joe T. Schwarz (c)
 */
 public class NanoDBConnect {
@@ -23,6 +31,11 @@ public class NanoDBConnect {
     soc = SocketChannel.open(new InetSocketAddress(host, port));
     soc.socket().setReceiveBufferSize(65536); // 32KB
     soc.socket().setSendBufferSize(65536);
+    out = new NanoFrameChannel(soc, NanoFrame.CHUNK);
+    SocketChannel ch = soc;
+    Thread reader = new Thread(() -> receive(ch), "NanoDBConnect");
+    reader.setDaemon(true);
+    reader.start();
     // start Shutdown listener
     Runtime.getRuntime().addShutdownHook(new Thread() {
       public void run() {
@@ -33,6 +46,18 @@ public class NanoDBConnect {
     });
   }  
   /**
+  setChunkSize of the requests: a larger request (e.g. a large object) is streamed as chunked frames
+  @param chunk int, max. bytes per frame (min. 1 KB, max. 16 MB, default: 64 KB)
+  */
+  public void setChunkSize(int chunk) {
+    lock.lock();
+    try {
+      out = new NanoFrameChannel(soc, chunk);
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
   @param dbName String
   @param charsetName String
   @return String assigned userID to this connected dbName
@@ -53,22 +78,138 @@ public class NanoDBConnect {
     dbLst.remove(dbName);
   }
   /**
+  getKeys. The keys are fetched in chunks (see keys()) in key order.
   @param dbName String
   @return List of key Strings
   @exception Exception thrown by java
   */
   public List<String> getKeys(String dbName) throws Exception {
-    byte[] bb = send(dbName, 2);
     List<String> keys = new ArrayList<>();
-    if (bb[1] != (byte) 0x00 || bb[2] != (byte) 0x00) {
-      for (int l = 0, i = 1; i < bb.length; i += (2+l)) {
-        l = ((int)(bb[i] & 0xFF) << 8) | (int)(bb[i+1] & 0xFF);
-        keys.add(new String(bb, i+2, l));
-      }
-    }
+    for (Iterator<String> it = keys(dbName, 1024); it.hasNext(); ) keys.add(it.next());
     return keys;
   }
   /**
+  keys iterates over all keys in key order. The keys are fetched in chunks of max. chunk keys
+  <br>by a continuation token: the memory on both sides doesn't depend on the number of keys.
+  <br>A failed fetch is thrown as RuntimeException by hasNext().
+  @param dbName String
+  @param chunk int, max. number of keys per fetch
+  @return Iterator of key Strings
+  @exception Exception thrown by java
+  */
+  public Iterator<String> keys(String dbName, int chunk) throws Exception {
+    if (!dbLst.contains(dbName)) throw new Exception("Unknown dbName "+dbName);
+    return new Iterator<String>() {
+      public boolean hasNext() {
+        if (i < list.size()) return true;
+        if (token == null) return false;
+        try { // next chunk
+          byte[] limit = new byte[4];
+          ByteBuffer.wrap(limit).putInt(chunk);
+          ByteBuffer bb = ByteBuffer.wrap(await(call(21, NanoDBConnect::chunk, request(dbName, 21, token, limit))));
+          byte[] tb = new byte[bb.getShort() & 0xFFFF];
+          bb.get(tb);
+          token = tb.length > 0? new String(tb, StandardCharsets.UTF_8):null;
+          list.clear();
+          i = 0;
+          while (bb.hasRemaining()) {
+            byte[] kb = new byte[bb.getShort() & 0xFFFF];
+            bb.get(kb);
+            list.add(new String(kb, StandardCharsets.UTF_8));
+          }
+        } catch (Exception ex) {
+          throw new RuntimeException(ex);
+        }
+        return i < list.size();
+      }
+      public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return list.get(i++);
+      }
+      private List<String> list = new ArrayList<>(chunk);
+      private String token = "";
+      private int i;
+    };
+  }
+  /**
+  streamKeys. A Stream view of keys().
+  @param dbName String
+  @param chunk int, max. number of keys per fetch
+  @return Stream of key Strings in key order
+  @exception Exception thrown by java
+  */
+  public java.util.stream.Stream<String> streamKeys(String dbName, int chunk) throws Exception {
+    return java.util.stream.StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys(dbName, chunk),
+                                                 Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+  /**
+  scan the keys in key order from fromKey (inclusive) to toKey (exclusive).
+  <br>Next page: fromKey = last key + "\0"
+  @param dbName String
+  @param fromKey String, null: from the first key
+  @param toKey String, null: up to the last key
+  @param limit int, max. number of keys
+  @return List of key Strings in key order
+  @exception Exception thrown by java
+  */
+  public List<String> scan(String dbName, String fromKey, String toKey, int limit) throws Exception {
+    byte[] tk = (toKey != null? toKey:"").getBytes();
+    byte[] obj = new byte[4+tk.length];
+    ByteBuffer.wrap(obj).putInt(limit).put(tk);
+    return keys(send(dbName, 19, fromKey != null? fromKey:"", obj));
+  }
+  /**
+  scan the keys with prefix in key order
+  @param dbName String
+  @param prefix String
+  @param limit int, max. number of keys
+  @return List of key Strings in key order
+  @exception Exception thrown by java
+  */
+  public List<String> scanPrefix(String dbName, String prefix, int limit) throws Exception {
+    byte[] obj = new byte[4];
+    ByteBuffer.wrap(obj).putInt(limit);
+    return keys(send(dbName, 20, prefix, obj));
+  }
+  /**
+  addIndex, a secondary index by a field (or getter) of the objects. The server must know their class
+  <br>and allow it (NanoDBManager.setIndexFilter()): the other records are not indexed.
+  @param dbName String
+  @param name String, index name
+  @param field String, field or getter name, e.g. "image"
+  @exception Exception thrown by java
+  */
+  public void addIndex(String dbName, String name, String field) throws Exception {
+    send(dbName, 24, name, field.getBytes());
+  }
+  /**
+  findByIndex
+  @param dbName String
+  @param name String, index name
+  @param value String, index key (the value of the field)
+  @return List of key Strings in key order
+  @exception Exception thrown by java
+  */
+  public List<String> findByIndex(String dbName, String name, String value) throws Exception {
+    return keys(send(dbName, 25, name, value.getBytes()));
+  }
+  /**
+  begin a transaction: the changes are buffered locally and sent by commit(dbName, transaction)
+  @return NanoTransaction, empty
+  */
+  public NanoTransaction begin() {
+    return new NanoTransaction();
+  }
+  /**
+  commit a transaction in ONE request: all changes are applied or none
+  @param dbName String
+  @param tx NanoTransaction
+  @exception Exception thrown by java, e.g. a key is locked by other user
+  */
+  public void commit(String dbName, NanoTransaction tx) throws Exception {
+    send(dbName, 23, "", tx.toBytes());
+  }
+  /**
   @param dbName String
   @param boo boolean, true: set, false: reset
   @exception Exception thrown by java
@@ -95,6 +236,19 @@ public class NanoDBConnect {
     return send(dbName, 5, key)[1] == (byte)0x00;
   }
   /**
+  lock, wait on the server if key is locked by other user (no polling)
+  @param dbName String
+  @param key String
+  @param timeout long, max. waiting time in milliseconds
+  @return boolean true: locked, false: still locked by other user after timeout
+  @exception Exception thrown by java
+  */
+  public boolean lock(String dbName, String key, long timeout) throws Exception {
+    byte[] obj = new byte[4];
+    ByteBuffer.wrap(obj).putInt((int)Math.min(timeout, Integer.MAX_VALUE));
+    return send(dbName, 22, key, obj)[1] == (byte)0x00;
+  }
+  /**
   @param dbName String
   @param key String
   @return boolean true: locked, false: no locked
@@ -137,16 +291,31 @@ public class NanoDBConnect {
   @exception Exception thrown by java
   */
   public Object readObject(String dbName, String key) throws Exception {
-    byte[] buf = send(dbName, 10, key); // ignore buf[0] as OK-byte 
-    if (buf[1] != (byte)0xAC || buf[2] != (byte)0xED) {
-      byte[] bb = new byte[buf.length-1];
-      System.arraycopy(buf, 1, bb, 0, bb.length);
-      return bb;
-    }
-    ObjectInputStream oi = new ObjectInputStream(new ByteArrayInputStream(buf, 1, buf.length-1));
-    Object obj = oi.readObject();
-    oi.close();
-    return obj;
+    return await(readObjectAsync(dbName, key));
+  }
+  /**
+  readObjectAsync, a pipelined read: it returns when the request is sent
+  @param dbName String
+  @param key String
+  @return CompletableFuture of the Object (serialized Object or byte array), completed by the reply
+  @exception Exception thrown by java
+  */
+  public CompletableFuture<Object> readObjectAsync(String dbName, String key) throws Exception {
+    return call(10, NanoDBConnect::object, request(dbName, 10, key));
+  }
+  /**
+  readObjects, a batch of pipelined reads: all requests are sent without waiting for the replies
+  @param dbName String
+  @param keys List of key Strings
+  @return List of the Objects (serialized Object or byte array) in the order of keys
+  @exception Exception thrown by java, e.g. the first failed read
+  */
+  public List<Object> readObjects(String dbName, List<String> keys) throws Exception {
+    List<CompletableFuture<Object>> futures = new ArrayList<>(keys.size());
+    for (String key : keys) futures.add(readObjectAsync(dbName, key));
+    List<Object> objs = new ArrayList<>(keys.size());
+    for (CompletableFuture<Object> f : futures) objs.add(await(f));
+    return objs;
   }
   /**
   @param dbName String
@@ -243,9 +412,8 @@ public class NanoDBConnect {
   */
   public void disconnect() throws Exception {
     // cmd: 18, length = 1, data = 0
-    soc.write(ByteBuffer.wrap(new byte[] {(byte)18, (byte)0, (byte)1, (byte)0 }));
+    call(18, null, ByteBuffer.wrap(new byte[] {(byte)18, (byte)0, (byte)1, (byte)0 }));
     soc.close();
-    bao.close();
     soc = null;
   }
   //-------------------------------------------------------------------------------------
@@ -253,64 +421,141 @@ public class NanoDBConnect {
   // buf format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key length, 4 bytes: data Length, dbName, key, data
   //
   private byte[] send(String dbName, int cmd, String key, byte[] obj) throws Exception {
+    return await(call(cmd, NanoDBConnect::status, request(dbName, cmd, key, obj)));
+  }
+  private ByteBuffer[] request(String dbName, int cmd, String key, byte[] obj) throws Exception {
     if (!dbLst.contains(dbName)) throw new Exception("Unknown dbName "+dbName);
-    int kl = key.length(), dl = dbName.length();
-    byte[] buf = new byte[9+kl+dl+obj.length];
-    buf[0] = (byte)cmd;
-    buf[1] = (byte)(((int)dl & 0xFF00) >> 8); buf[2] = (byte)((int)dl & 0xFF);
-    buf[3] = (byte)(((int)kl & 0xFF00) >> 8); buf[4] = (byte)((int)kl & 0xFF);
-    buf[5] = (byte)(((int)obj.length & 0xFF000000) >> 24); buf[6] = (byte)(((int)obj.length & 0xFF0000) >> 16);
-    buf[7] = (byte)(((int)obj.length & 0xFF00) >> 8); buf[8] = (byte)((int)obj.length & 0xFF);
-    System.arraycopy(dbName.getBytes(), 0, buf, 9, dl);
-    System.arraycopy(key.getBytes(), 0, buf, 9+dl, kl);
-    System.arraycopy(obj, 0, buf, 9+dl+kl, obj.length);
-    soc.write(ByteBuffer.wrap(buf, 0, buf.length));
-    return readChannel();
+    byte[] db = dbName.getBytes(), kb = key.getBytes();
+    ByteBuffer hdr = ByteBuffer.allocate(9+db.length+kb.length).put((byte)cmd).putShort((short)db.length)
+                               .putShort((short)kb.length).putInt(obj.length).put(db).put(kb).flip();
+    return new ByteBuffer[] { hdr, ByteBuffer.wrap(obj) }; // obj is not copied into the request
   }
   //
   // buf format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key/data length, dbName, keye/data
   //
   private byte[] send(String dbName, int cmd, String key) throws Exception {
+    return await(call(cmd, NanoDBConnect::status, request(dbName, cmd, key)));
+  }
+  private ByteBuffer request(String dbName, int cmd, String key) throws Exception {
     if (!dbLst.contains(dbName)) throw new Exception("Unknown dbName "+dbName);
-    int kl = key.length(), dl = dbName.length();
-    byte[] buf = new byte[5+kl+dl];
-    buf[0] = (byte)cmd;
-    buf[1] = (byte)(((int)dl & 0xFF00) >> 8); buf[2] = (byte)((int)dl & 0xFF);
-    buf[3] = (byte)(((int)kl & 0xFF00) >> 8); buf[4] = (byte)((int)kl & 0xFF);
-    System.arraycopy(dbName.getBytes(), 0, buf, 5, dl);
-    System.arraycopy(key.getBytes(), 0, buf, 5+dl, kl);
-    soc.write(ByteBuffer.wrap(buf, 0, buf.length));
-    return readChannel();
+    byte[] db = dbName.getBytes(), kb = key.getBytes();
+    return ByteBuffer.allocate(5+db.length+kb.length).put((byte)cmd).putShort((short)db.length)
+                     .putShort((short)kb.length).put(db).put(kb).flip();
   }
   //
   // buf format: 1st byte: cmd, 2 bytes: key length, key or name
   //
   private byte[] send(String dbName, int cmd) throws Exception {
     if (!dbLst.contains(dbName)) throw new Exception("Unknown dbName "+dbName);
-    int dl = dbName.length();
-    byte[] buf = new byte[3+dl];
-    buf[0] = (byte)cmd;
-    buf[1] = (byte)(((int)dl & 0xFF00) >> 8); buf[2] = (byte)((int)dl & 0xFF);
-    System.arraycopy(dbName.getBytes(), 0, buf, 3, dl);
-    soc.write(ByteBuffer.wrap(buf, 0, buf.length));
-    return readChannel();
+    byte[] db = dbName.getBytes();
+    return await(call(cmd, NanoDBConnect::status,
+                      ByteBuffer.allocate(3+db.length).put((byte)cmd).putShort((short)db.length).put(db).flip()));
+  }
+  // send a request as frames with the next request id. Its reply is read by reply (null: no reply expected)
+  private <T> CompletableFuture<T> call(int cmd, Reply<T> reply, ByteBuffer... bbs) throws Exception {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    lock.lock();
+    try {
+      if (soc == null) throw new Exception("Disconnected");
+      int id = ++ids;
+      if (reply != null) calls.put(id, new Call(future, reply));
+      if (failure != null && calls.remove(id) != null) throw new Exception("Disconnected: "+failure);
+      out.begin(id, cmd);
+      out.write(bbs);
+      out.end();
+    } finally {
+      lock.unlock();
+    }
+    return future;
+  }
+  // wait for the reply. The failure of the request is thrown as is
+  private static <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+      throw ex;
+    }
+  }
+  // the reader thread: read the replies and complete their calls
+  private void receive(SocketChannel ch) {
+    ByteBuffer rbuf = ByteBuffer.allocate(65536).flip(); // received bytes
+    try {
+      while (true) try (NanoFrame.Input in = new NanoFrame.Input(ch, rbuf)) {
+        Call c = calls.remove(in.id());
+        if (c != null) try {
+          c.complete(in);
+        } catch (Exception ex) {
+          c.future.completeExceptionally(ex);
+        }
+      }
+    } catch (Exception ex) { // disconnected
+      failure = ex.toString();
+      for (Integer id : calls.keySet()) {
+        Call c = calls.remove(id);
+        if (c != null) c.future.completeExceptionally(new Exception("Disconnected: "+failure));
+      }
+    }
   }
   //-------------------------------------------------------------------------------
-  private byte[] readChannel() throws Exception {
-    bao.reset();
-    int le = 0;
-    do {
-      bbuf.clear();
-      le = soc.read(bbuf);
-      bao.write(bbuf.flip().array(), 0, le);
-    } while (le >= 65536);
-    byte[] bb = bao.toByteArray();
+  // the reply: status byte (0x00: OK, else: message follows) and data
+  private static byte[] status(NanoFrame.Input in) throws Exception {
+    byte[] bb = in.readAllBytes();
     if (bb[0] == (byte)00) return bb;
     throw new Exception(new String(bb, 1, bb.length-1));
   }
+  // a chunk: status byte + 4 bytes length + data. Exception if status is failed (data: message)
+  private static byte[] chunk(NanoFrame.Input in) throws Exception {
+    DataInputStream dis = new DataInputStream(in);
+    int status = dis.read();
+    byte[] bb = new byte[dis.readInt()];
+    dis.readFully(bb);
+    if (status == 0x00) return bb;
+    throw new Exception(new String(bb));
+  }
+  // an object: status byte and the serialized object (deserialized frame by frame) or the byte array
+  private static Object object(NanoFrame.Input in) throws Exception {
+    if (in.read() != 0x00) throw new Exception(new String(in.readAllBytes()));
+    PushbackInputStream pin = new PushbackInputStream(in, 2);
+    byte[] magic = pin.readNBytes(2);
+    pin.unread(magic);
+    if (magic.length < 2 || magic[0] != (byte)0xAC || magic[1] != (byte)0xED) return pin.readAllBytes();
+    return new ObjectInputStream(pin).readObject();
+  }
+  // the reader of a reply
+  private interface Reply<T> {
+    T read(NanoFrame.Input in) throws Exception;
+  }
+  // a pending request
+  private static class Call {
+    @SuppressWarnings("unchecked")
+    <T> Call(CompletableFuture<T> future, Reply<T> reply) {
+      this.future = (CompletableFuture<Object>)future;
+      this.reply = (Reply<Object>)reply;
+    }
+    void complete(NanoFrame.Input in) throws Exception {
+      future.complete(reply.read(in));
+    }
+    private final CompletableFuture<Object> future;
+    private final Reply<Object> reply;
+  }
+  // decode the list of keys: keyLength - keyContent (UTF-8)
+  private List<String> keys(byte[] bb) {
+    List<String> keys = new ArrayList<>();
+    if (bb[1] != (byte) 0x00 || bb[2] != (byte) 0x00) {
+      for (int l = 0, i = 1; i < bb.length; i += (2+l)) {
+        l = ((int)(bb[i] & 0xFF) << 8) | (int)(bb[i+1] & 0xFF);
+        keys.add(new String(bb, i+2, l, StandardCharsets.UTF_8));
+      }
+    }
+    return keys;
+  }
   //------------------------------------------------------------------------------
-  private SocketChannel soc;
-  private ByteBuffer bbuf = ByteBuffer.allocate(65536);
-  private ByteArrayOutputStream bao = new ByteArrayOutputStream(65536);
+  private volatile SocketChannel soc;
+  private ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<>();
+  private ReentrantLock lock = new ReentrantLock(); // sending
+  private volatile String failure;
+  private NanoFrameChannel out;
+  private int ids;
   private List<String> dbLst = Collections.synchronizedList(new ArrayList<>());
 }
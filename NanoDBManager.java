@@ -1,9 +1,14 @@
 package nanodb;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLong;
 /**
 NanoDBManager manages and synchronizes all NanoDBWorkers from accessing the underlying NanoDB files.
 @author Joe T. Schwarz (c)
@@ -24,6 +29,43 @@ public class NanoDBManager {
     
   }
   /**
+  contructor.
+  @param path  String, directory path of NanoDB files
+  @param limit int, limit NanoDB cache size (min. 1 MB, max. 1 GB)
+  @param offHeap boolean, true: the NanoDB caches are kept off-heap (direct memory)
+  */
+  public NanoDBManager(String path, int limit, boolean offHeap) {
+    this(path, limit);
+    this.offHeap = offHeap;
+  }
+  /**
+  setChunkSize of the replies: a larger reply (e.g. a large object) is streamed as chunked frames
+  @param chunk int, max. bytes per frame (min. 1 KB, max. 16 MB, default: 64 KB)
+  */
+  public void setChunkSize(int chunk) {
+    this.chunk = Math.max(1024, Math.min(chunk, NanoFrame.MAX));
+  }
+  /**
+  @return int, max. bytes per reply frame
+  */
+  public int getChunkSize() {
+    return chunk;
+  }
+  /**
+  setMaxMessage, the max. size of a request. A larger request is rejected and its connection is closed.
+  <br>A request is allocated with its received bytes, not with its declared length.
+  @param max int, max. bytes of a request (min. 64 KB, default: 64 MB)
+  */
+  public void setMaxMessage(int max) {
+    this.maxMessage = Math.max(65536, max);
+  }
+  /**
+  @return int, max. bytes of a request
+  */
+  public int getMaxMessage() {
+    return maxMessage;
+  }
+  /**
   open - upper layer of NanoDB's open()
   @param userID String
   @param dbName String, NanoDB's name
@@ -39,6 +81,7 @@ public class NanoDBManager {
         if (nano == null) { // new NanoDB
           nano = new NanoDB(path+dbName, charsetName);
           nano.setCacheLimit(cacheLimit);
+          nano.setOffHeap(offHeap);
           nanoMap.put(dbName, nano);
           list.add(nano);
           nano.open();
@@ -76,6 +119,20 @@ public class NanoDBManager {
     return new byte[] { (byte)0x00 };
   }
   /**
+  release - the connection of userID is lost (EOF or error): its uncommitted changes are rolled back,
+  <br>its locked keys are released and its waiting lock requests fail in all open NanoDBs.
+  <br>The NanoDBs stay open for the other users.
+  @param userID String
+  */
+  public void release(String userID) {
+    for (NanoDB nano : nanoMap.values()) {
+      nano.rollbackAll(userID);
+      nano.removeLockedKeys(userID);
+    }
+    usersList.remove(userID);
+    usersMap.remove(userID);
+  }
+  /**
   disconnect
   <br>In case of error, the return byte array contains the error message.
   @param userID String
@@ -103,17 +160,80 @@ public class NanoDBManager {
   */
   public byte[] getKeys(String dbName) {
     try {
-      List<String> keys = nanoMap.get(dbName).getKeys();
-      if (keys.size() == 0) return new byte[] { (byte)0x00, (byte)0x00, (byte)0x00 };
-      ByteArrayOutputStream bao = new ByteArrayOutputStream();
-      bao.write(new byte[] { (byte)0x00 }); // successfull
-      for (String k : keys) if (k.length() > 0) { // keyLength - keyContent as bytes      
-        bao.write(new byte[] { (byte)((k.length() & 0xFF00) >> 8), (byte)(k.length() & 0xFF) });
-        bao.write(k.getBytes());
+      return keys(nanoMap.get(dbName).getKeys());
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
+  }
+  /**
+  getKeys - a chunk of keys after the continuation token (NanoDB's scan()).
+  <br>Format: status byte (0: OK, 1: failed) + 4 bytes length + data.
+  <br>Data: 2 bytes token length + token + list of keys (2 bytes key length + key) or error message
+  <br>The token of the next chunk is the last key. Empty token: no more keys.
+  <br>A chunk is read from the key order of the NanoDB index: the heap of both sides is bounded by
+  <br>the chunk (max. limit keys and about PAGE bytes), not by the number of keys.
+  @param dbName String
+  @param token String, continuation token. Empty: from the first key
+  @param limit int, max. number of keys (max. 16384)
+  @return byte array of the chunk
+  */
+  public byte[] getKeys(String dbName, String token, int limit) {
+    ByteArrayOutputStream bao = new ByteArrayOutputStream(65536);
+    try {
+      limit = Math.max(1, Math.min(limit, 16384));
+      List<String> keys = nanoMap.get(dbName).scan(token.length() > 0? token+"\0":null, null, limit);
+      ArrayList<byte[]> kbs = new ArrayList<>(keys.size());
+      for (int i = 0, size = 0; i < keys.size() && (i == 0 || size < PAGE); ++i) { // min. one key
+        byte[] kb = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        kbs.add(kb);
+        size += 2 + kb.length;
+      }
+      byte[] tb = kbs.size() < limit && kbs.size() == keys.size()? new byte[0]:kbs.get(kbs.size()-1);
+      bao.write(new byte[5]); // status + length
+      bao.write(new byte[] { (byte)(tb.length >> 8), (byte)tb.length });
+      bao.write(tb);
+      for (byte[] kb : kbs) {
+        bao.write(new byte[] { (byte)(kb.length >> 8), (byte)kb.length });
+        bao.write(kb);
       }
-      bao.flush();
-      bao.close();
-      return bao.toByteArray();
+    } catch (Exception ex) {
+      byte[] msg = ex.toString().getBytes();
+      bao.reset();
+      bao.write(new byte[] { (byte)0x01, 0, 0, 0, 0 }, 0, 5); // failed + length
+      bao.write(msg, 0, msg.length);
+    }
+    byte[] bb = bao.toByteArray();
+    ByteBuffer.wrap(bb).putInt(1, bb.length-5);
+    return bb;
+  }
+  /**
+  scan - upper layer of NanoDB's scan().
+  <br>In case of error, the return byte array contains the error message.
+  @param dbName String
+  @param fromKey String, inclusive. Empty: from the first key
+  @param toKey String, exclusive. Empty: up to the last key
+  @param limit int, max. number of keys
+  @return byte array where the first byte element signifies the success (0) or failed (1), then a list of keys in bytes
+  */
+  public byte[] scan(String dbName, String fromKey, String toKey, int limit) {
+    try {
+      return keys(nanoMap.get(dbName).scan(fromKey.length() > 0? fromKey:null,
+                                           toKey.length() > 0? toKey:null, limit));
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
+  }
+  /**
+  scanPrefix - upper layer of NanoDB's scanPrefix().
+  <br>In case of error, the return byte array contains the error message.
+  @param dbName String
+  @param prefix String
+  @param limit int, max. number of keys
+  @return byte array where the first byte element signifies the success (0) or failed (1), then a list of keys in bytes
+  */
+  public byte[] scanPrefix(String dbName, String prefix, int limit) {
+    try {
+      return keys(nanoMap.get(dbName).scanPrefix(prefix, limit));
     } catch (Exception ex) {
       return (""+(char)0x01+ex.toString()).getBytes();
     }
@@ -151,6 +271,76 @@ public class NanoDBManager {
     return new byte[] { (byte)0x00, 0x01 };
   }
   /**
+  lock - upper layer of NanoDB's lock() with timeout. The returned byte is x00 (OK) or x01 (failed).
+  <br>The reply is held until the key is locked or the timeout is over.
+  @param userID String
+  @param dbName String, NanoDB's name
+  @param key String
+  @param timeout long, max. waiting time in milliseconds (max. getMaxLockWait())
+  @return byte array where the first byte element signifies the success (0) or failed (1)
+  */
+  public byte[] lock(String userID, String dbName, String key, long timeout) {
+    timeout = Math.min(timeout, maxLockWait);
+    if (nanoMap.get(dbName).lock(userID, key, timeout)) return new byte[] { (byte)0x00, (byte)0x00 };
+    return new byte[] { (byte)0x00, 0x01 };
+  }
+  /**
+  lock - upper layer of NanoDB's lock() with timeout without a waiting thread: reply is called with
+  <br>the reply of lock(userID, dbName, key, timeout) when the key is locked or the timeout is over.
+  @param userID String
+  @param dbName String, NanoDB's name
+  @param key String
+  @param timeout long, max. waiting time in milliseconds (max. getMaxLockWait())
+  @param reply Consumer of the reply, must not block
+  */
+  public void lock(String userID, String dbName, String key, long timeout, Consumer<byte[]> reply) {
+    nanoMap.get(dbName).lock(userID, key, Math.min(timeout, maxLockWait),
+                             ok -> reply.accept(new byte[] { (byte)0x00, ok? (byte)0x00:(byte)0x01 }));
+  }
+  /**
+  setMaxLockWait, the max. waiting time of a lock request with timeout (the client's timeout is capped)
+  @param max long, max. milliseconds (default: 30000)
+  */
+  public void setMaxLockWait(long max) {
+    this.maxLockWait = Math.max(0, max);
+  }
+  /**
+  @return long, max. waiting time of a lock request in milliseconds
+  */
+  public long getMaxLockWait() {
+    return maxLockWait;
+  }
+  /**
+  failed, a failure of the server (e.g. accept() failed: too many open files) is counted and kept
+  @param ex Exception
+  */
+  public void failed(Exception ex) {
+    lastFailure = ex;
+    failures.incrementAndGet();
+  }
+  /**
+  getFailures
+  @return long, number of the failures of the server (accept, event loops)
+  */
+  public long getFailures() {
+    return failures.get();
+  }
+  /**
+  getLastFailure
+  @return Exception, the last failure of the server, null if none
+  */
+  public Exception getLastFailure() {
+    return lastFailure;
+  }
+  /**
+  backoff of a server loop after consecutive failures: 100 ms, doubled per failure up to 1.6 seconds
+  @param failed int, number of the consecutive failures
+  @return long, milliseconds
+  */
+  static long backoff(int failed) {
+    return BACKOFF << Math.min(failed, 4);
+  }
+  /**
   unlock - upper layer of NanoDB's unlock(). The returned byte is x00 (OK) or x01 (failed).
   <br>The returned string is either "true" or "false" in lower case.
   @param userID String
@@ -215,6 +405,44 @@ public class NanoDBManager {
     }
   }
   /**
+  readObject - upper layer of NanoDB's getObject() into a ByteBuffer (e.g. a direct socket buffer).
+  <br>The returned is either the data or an error-message
+  @param userID String
+  @param dbName String
+  @param key String
+  @param buf ByteBuffer, reusable buffer
+  @return ByteBuffer (buf or a larger one) ready to be written. 1st byte signifies the success (0) or failed (1)
+  */
+  public ByteBuffer readObject(String userID, String dbName, String key, ByteBuffer buf) {
+    buf.clear();
+    try {
+      return nanoMap.get(dbName).readObject(userID, key, buf.put((byte)0x00)).flip();
+    } catch (Exception ex) {
+      byte[] err = (""+(char)0x01+ex.toString()).getBytes();
+      if (buf.capacity() < err.length) return ByteBuffer.wrap(err);
+      return buf.clear().put(err).flip();
+    }
+  }
+  /**
+  readObject - upper layer of NanoDB's readObject() to a channel: status byte (0), then the data
+  <br>transferred from the NanoDB file or the cache without copies. The error-message (status 1) otherwise.
+  @param userID String
+  @param dbName String
+  @param key String
+  @param ch GatheringByteChannel, e.g. SocketChannel in blocking mode or NanoDBChannel
+  @exception Exception thrown by JAVA if the channel fails
+  */
+  public void readObject(String userID, String dbName, String key, GatheringByteChannel ch) throws Exception {
+    ByteBuffer head = ByteBuffer.wrap(new byte[] { (byte)0x00 });
+    try {
+      nanoMap.get(dbName).readObject(userID, key, head, ch);
+    } catch (Exception ex) {
+      if (!head.hasRemaining()) throw ex; // data is (partly) sent
+      ByteBuffer err = ByteBuffer.wrap((""+(char)0x01+ex.toString()).getBytes());
+      while (err.hasRemaining()) ch.write(err);
+    }
+  }
+  /**
   addObject - upper layer of NanoDB's addObject().
   <br>In case of error, the return byte array contains the error message.
   @param userID String
@@ -283,8 +511,12 @@ public class NanoDBManager {
   @return byte array where the first byte element signifies the success (0) or failed (1)
   */
   public byte[] commitAll(String userID, String dbName) {
-    nanoMap.get(dbName).commitAll(userID);
-    return new byte[] { (byte)0x00 };
+    try {
+      nanoMap.get(dbName).commitAll(userID);
+      return new byte[] { (byte)0x00 };
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
   }
   /**
   rollback - upper layer of NanoDB's rollack(). The returned byte is x00 (OK) or x01 (failed).
@@ -308,9 +540,92 @@ public class NanoDBManager {
     nanoMap.get(dbName).rollbackAll(userID);
     return new byte[] { (byte)0x00 };
   }
+  /**
+  setIndexFilter, the allow-list of the classes deserialized by the indexes of addIndex(): the records
+  <br>are sent by the clients. A rejected record is not indexed.
+  @param pattern String, ObjectInputFilter pattern, e.g. "maxdepth=20;nanodb.People;java.base/*;!*"
+  <br>(default: "maxdepth=20;maxrefs=10000;java.base/*;!*", the classes of java.base only)
+  */
+  public void setIndexFilter(String pattern) {
+    this.indexFilter = ObjectInputFilter.Config.createFilter(pattern);
+  }
+  /**
+  addIndex - upper layer of NanoDB's addIndex() with the extractor NanoExtractor.field(field, filter)
+  <br>of the index filter (see setIndexFilter()).
+  <br>In case of error, the return byte array contains the error message.
+  @param dbName String
+  @param name String, index name
+  @param field String, field or getter name of the (deserialized) objects
+  @return byte array where the first byte element signifies the success (0) or failed (1)
+  */
+  public byte[] addIndex(String dbName, String name, String field) {
+    try {
+      nanoMap.get(dbName).addIndex(name, NanoExtractor.field(field, indexFilter));
+      return new byte[] { (byte)0x00 };
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
+  }
+  /**
+  findByIndex - upper layer of NanoDB's findByIndex().
+  <br>In case of error, the return byte array contains the error message.
+  @param dbName String
+  @param name String, index name
+  @param value String, index key
+  @return byte array where the first byte element signifies the success (0) or failed (1), then a list of keys in bytes
+  */
+  public byte[] findByIndex(String dbName, String name, String value) {
+    try {
+      return keys(nanoMap.get(dbName).findByIndex(name, value));
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
+  }
+  /**
+  commit - upper layer of NanoDB's commit() of a transaction.
+  <br>In case of error, the return byte array contains the error message.
+  @param userID String
+  @param dbName String
+  @param buf byte array of the serialized NanoTransaction
+  @param off int, offset of the transaction in buf
+  @return byte array where the first byte element signifies the success (0) or failed (1)
+  */
+  public byte[] commit(String userID, String dbName, byte[] buf, int off) {
+    try {
+      NanoTransaction tx = NanoTransaction.parse(buf, off);
+      if (tx.getTimeout() > maxLockWait) tx.setTimeout(maxLockWait); // waits on a server thread
+      nanoMap.get(dbName).commit(userID, tx);
+      return new byte[] { (byte)0x00 };
+    } catch (Exception ex) {
+      return (""+(char)0x01+ex.toString()).getBytes();
+    }
+  }
   //
+  // list of keys in bytes: keyLength - keyContent
+  private byte[] keys(List<String> keys) throws Exception {
+    if (keys.size() == 0) return new byte[] { (byte)0x00, (byte)0x00, (byte)0x00 };
+    ByteArrayOutputStream bao = new ByteArrayOutputStream();
+    bao.write(new byte[] { (byte)0x00 }); // successfull
+    for (String k : keys) if (k.length() > 0) { // keyLength - keyContent as UTF-8 bytes
+      byte[] kb = k.getBytes(StandardCharsets.UTF_8);
+      bao.write(new byte[] { (byte)((kb.length & 0xFF00) >> 8), (byte)(kb.length & 0xFF) });
+      bao.write(kb);
+    }
+    bao.flush();
+    bao.close();
+    return bao.toByteArray();
+  }
   private String path;
   private int cacheLimit;
+  private boolean offHeap;
+  private volatile int chunk = NanoFrame.CHUNK, maxMessage = 0x4000000;
+  private volatile long maxLockWait = 30000;
+  private volatile ObjectInputFilter indexFilter =
+    ObjectInputFilter.Config.createFilter("maxdepth=20;maxrefs=10000;java.base/*;!*");
+  private volatile Exception lastFailure;
+  private final AtomicLong failures = new AtomicLong();
+  private static final long BACKOFF = 100; // ms after the first failure of a server loop
+  private static final int PAGE = 0x100000; // bytes of a key chunk (getKeys())
   private ByteArrayOutputStream bao = new ByteArrayOutputStream(65536);
   private ConcurrentHashMap<String, NanoDB> nanoMap = new ConcurrentHashMap<>();
   private List<String> usersList = Collections.synchronizedList(new ArrayList<>());
@@ -0,0 +1,254 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.net.*;
+import java.util.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+NanoDBNio, the non-blocking core of a NanoDB server: a few threads serve any number of connections.
+<br>- Event loops: each loop selects its connections in non-blocking mode, reads the received bytes into
+<br>  a pooled buffer and decodes the frames (NanoFrame). The first loop also accepts the connections (round robin).
+<br>- A complete request is executed by the bounded executor (NanoDBWorker.execute()) which writes the framed
+<br>  reply (NanoDBChannel). Pipelining: the requests of a connection are executed one by one in order while
+<br>  the next ones are received and decoded. Max. QUEUE decoded requests per connection (back pressure).
+<br>- A request is never executed by a loop: if the executor rejects it (saturated) its connection is not read
+<br>  and the request is retried by the loop every RETRY ms.
+<br>- A failure of accept (e.g. too many open files) or of a loop is reported (NanoDBManager.failed()) and
+<br>  backed off: the server is not selected, the loop sleeps for a while. No busy loop.
+<br>- A lock request with timeout doesn't hold a thread: it's replied when the key is granted (NanoDBWorker.defer()).
+@author Joe T. Schwarz (c)
+*/
+public class NanoDBNio {
+  /**
+  constructor
+  @param server ServerSocketChannel, bound
+  @param nanoMgr NanoDBManager
+  @param loops int, number of event loops (threads)
+  @param executor ExecutorService executing the requests, e.g. newExecutor()
+  @exception Exception thrown by JAVA
+  */
+  public NanoDBNio(ServerSocketChannel server, NanoDBManager nanoMgr, int loops, ExecutorService executor) throws Exception {
+    this.server = server;
+    this.nanoMgr = nanoMgr;
+    this.executor = executor;
+    this.loops = new Loop[Math.max(1, loops)];
+    for (int i = 0; i < this.loops.length; ++i) this.loops[i] = new Loop(i);
+    server.configureBlocking(false);
+    server.register(this.loops[0].selector, SelectionKey.OP_ACCEPT);
+  }
+  /**
+  a bounded executor for the requests: threads threads and a queue of max. queue requests.
+  <br>If the queue is full a request is rejected and retried later by its loop (back pressure).
+  @param threads int, number of threads
+  @param queue int, max. number of queued requests
+  @return ExecutorService
+  */
+  public static ExecutorService newExecutor(int threads, int queue) {
+    AtomicInteger count = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), r -> {
+      Thread t = new Thread(r, "NanoDBNio-exec-"+count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }, new ThreadPoolExecutor.AbortPolicy());
+  }
+  /**
+  start the event loops
+  */
+  public void start() {
+    for (Loop loop : loops) {
+      Thread t = new Thread(loop, "NanoDBNio-"+loop.id);
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+  /**
+  stop the event loops and close all connections (the executor is not shut down)
+  */
+  public void stop() {
+    running = false;
+    for (Loop loop : loops) loop.selector.wakeup();
+  }
+  /**
+  @return int, number of the open connections
+  */
+  public int getConnections() {
+    return connections.get();
+  }
+  //
+  private class Loop implements Runnable {
+    Loop(int id) throws IOException {
+      this.id = id;
+      selector = Selector.open();
+    }
+    public void run() {
+      for (int failed = 0; running; ) try {
+        long wait = stalled.isEmpty()? 0:RETRY;
+        if (resume > 0) wait = Math.max(1, Math.min(resume - System.currentTimeMillis(), wait > 0? wait:Long.MAX_VALUE));
+        selector.select(wait);
+        if (resume > 0 && System.currentTimeMillis() >= resume) { // accept again
+          resume = 0;
+          server.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+        }
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) task.run();
+        for (int n = stalled.size(); n > 0; --n) stalled.poll().resume(); // rejected by the executor
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) accept(key);
+          else if (key.isReadable()) ((Conn)key.attachment()).read();
+        }
+        failed = 0;
+      } catch (Exception ex) { // e.g. the selector failed: reported, no tight loop
+        if (!running) break;
+        nanoMgr.failed(ex);
+        try {
+          Thread.sleep(NanoDBManager.backoff(failed++));
+        } catch (InterruptedException ie) {
+          break;
+        }
+      }
+      for (SelectionKey key : selector.keys()) if (key.attachment() instanceof Conn) ((Conn)key.attachment()).close();
+      try {
+        selector.close();
+      } catch (Exception ex) { }
+    }
+    // accept the pending connections and hand them over to the loops. If accept fails (e.g. too many
+    // open files) it's reported and the server key is not selected for a backoff (no tight loop)
+    private void accept(SelectionKey key) {
+      SocketChannel soc = null;
+      try {
+        while ((soc = server.accept()) != null) {
+          soc.configureBlocking(false);
+          soc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          soc.setOption(StandardSocketOptions.SO_SNDBUF, 65536);
+          soc.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+          Loop loop = loops[(int)(accepted++ % loops.length)];
+          Conn conn = new Conn(soc, loop);
+          connections.incrementAndGet();
+          loop.execute(conn::register);
+          soc = null; // handed over
+        }
+        refused = 0;
+      } catch (Exception ex) {
+        if (soc != null) try {
+          soc.close();
+        } catch (Exception e) { }
+        nanoMgr.failed(ex);
+        key.interestOps(0);
+        resume = System.currentTimeMillis() + NanoDBManager.backoff(refused++);
+      }
+    }
+    // run task in this loop
+    void execute(Runnable task) {
+      tasks.offer(task);
+      selector.wakeup();
+    }
+    private final int id;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Conn> stalled = new ArrayDeque<>();
+    private long accepted, resume; // resume: time to accept again (0: accepting)
+    private int refused; // consecutive failed accepts
+  }
+  // a connection: its decoder, its decoded requests and its worker
+  private class Conn {
+    Conn(SocketChannel soc, Loop loop) {
+      this.soc = soc;
+      this.loop = loop;
+      worker = new NanoDBWorker(soc, nanoMgr);
+      out = new NanoFrameChannel(new NanoDBChannel(soc, TIMEOUT), nanoMgr.getChunkSize());
+    }
+    // register in loop (run by loop)
+    void register() {
+      try {
+        key = soc.register(loop.selector, SelectionKey.OP_READ, this);
+      } catch (Exception ex) {
+        close();
+      }
+    }
+    // read the received bytes into a pooled buffer, decode and dispatch the complete requests (run by loop)
+    void read() {
+      ByteBuffer bb = NanoFrame.borrow(NanoFrame.CHUNK);
+      try {
+        if (soc.read(bb) < 0) close();
+        else {
+          bb.flip();
+          for (NanoFrame req = decoder.next(bb); req != null; req = decoder.next(bb)) pending.add(req);
+          if (pending.size() >= QUEUE) key.interestOps(0); // not read until executed
+          dispatch();
+        }
+      } catch (Exception | OutOfMemoryError ex) { // corrupted or too large: the connection, not the loop
+        close();
+      } finally {
+        NanoFrame.recycle(bb);
+      }
+    }
+    // execute the next request in the executor: one at a time, in order
+    private void dispatch() {
+      if (busy) return;
+      NanoFrame req = pending.poll();
+      if (req == null) return;
+      busy = true;
+      try {
+        executor.execute(() -> {
+          try {
+            if (worker.defer(req, out, executor, ok -> {
+                  if (ok) loop.execute(this::resume);
+                  else close();
+                })) return; // a waiting lock: replied later, no thread waits
+            if (!worker.execute(req, out)) close();
+            else loop.execute(this::resume);
+          } catch (Exception ex) {
+            close();
+          } finally {
+            if (closed.get()) worker.release(); // closed while executed
+          }
+        });
+      } catch (RejectedExecutionException ex) { // saturated: not read until retried
+        pending.addFirst(req);
+        busy = false;
+        key.interestOps(0);
+        loop.stalled.add(this);
+      }
+    }
+    // the next request after the reply or a rejection (run by loop)
+    private void resume() {
+      busy = false;
+      if (!key.isValid()) return;
+      if (pending.size() < QUEUE) key.interestOps(SelectionKey.OP_READ);
+      dispatch(); // already received
+    }
+    // close the connection and release the locks of its user (EOF, error or disconnect)
+    void close() {
+      if (closed.getAndSet(true)) return;
+      connections.decrementAndGet();
+      try {
+        soc.close();
+      } catch (Exception ex) { }
+      worker.release();
+    }
+    private final NanoFrame.Decoder decoder = new NanoFrame.Decoder(NanoDBWorker::length, nanoMgr.getMaxMessage());
+    private final ArrayDeque<NanoFrame> pending = new ArrayDeque<>();
+    private boolean busy; // a request is executed
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final SocketChannel soc;
+    private final NanoFrameChannel out;
+    private final NanoDBWorker worker;
+    private final Loop loop;
+    private SelectionKey key;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int QUEUE = 64; // max. decoded requests per connection
+  private static final long TIMEOUT = 60000, RETRY = 10; // reply to a slow client, retry a rejected request
+  private final AtomicInteger connections = new AtomicInteger();
+  private volatile boolean running = true;
+  private ServerSocketChannel server;
+  private ExecutorService executor;
+  private NanoDBManager nanoMgr;
+  private Loop[] loops;
+}
@@ -10,6 +10,8 @@ import java.io.*;
 import java.nio.channels.*;
 /**
  An implemented NanoDBServer using ServerSocketChannel.
+ <br>The connections are served by the non-blocking event loops of NanoDBNio and a bounded executor
+ <br>or (mode "Virtual") by one NanoDBWorker per connection on a virtual thread (Java 21+).
  @author Joe T. Schwarz (c)
 */
 public class NanoDBServer extends JFrame {
@@ -27,7 +29,7 @@ public class NanoDBServer extends JFrame {
   public NanoDBServer( ) throws Exception {
     setTitle("NanoDBServer");
     setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-    ExecutorService pool = Executors.newFixedThreadPool(1024);
+    ExecutorService pool = Executors.newCachedThreadPool(); // SysMon and startup
     //
     JTextField jpath = new JTextField(System.getProperty("user.dir"));
     JTextField jhost = new JTextField("localhost");
@@ -35,6 +37,10 @@ public class NanoDBServer extends JFrame {
     JTextField jLim  = new JTextField("1");
     jLim.setPreferredSize(new Dimension(50, 25));
     JLabel lab = new JLabel("is NOT running");
+    ExecutorService probe = NanoDBWorker.newVirtualExecutor(); // null: no virtual threads (before Java 21)
+    JComboBox<String> jmode = new JComboBox<>(probe != null? new String[] { "NIO", "Virtual" }:new String[] { "NIO" });
+    if (probe != null) probe.shutdown();
+    else jmode.setToolTipText("Virtual: requires Java 21+");
     jport.addKeyListener(new KeyAdapter() {
       public void keyTyped(KeyEvent e) {
         char c = e.getKeyChar();
@@ -59,6 +65,8 @@ public class NanoDBServer extends JFrame {
     start.addActionListener(a -> {
       if ("EXIT".equals(start.getText())) {
         nanoMgr.closed = true;
+        if (nio != null) nio.stop();
+        if (virtual != null) virtual.shutdownNow();
         if (!running) {
           running = false;
           try {
@@ -82,11 +90,24 @@ public class NanoDBServer extends JFrame {
           dbSvr.socket().bind(new InetSocketAddress(host, port));
           dbSvr.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
           jhost.setEnabled(false); jport.setEnabled(false);jpath.setEnabled(false);jLim.setEnabled(false);
+          jmode.setEnabled(false);
           //
           go = true;
           lab.setText("is running...");
           nanoMgr = new NanoDBManager(jpath.getText().trim(), 0x100000 * Integer.parseInt(jLim.getText()));
-          while (running) pool.execute(new NanoDBWorker(dbSvr.accept(), nanoMgr));
+          if ("Virtual".equals(jmode.getSelectedItem())) {
+            virtual = NanoDBWorker.newVirtualExecutor();
+            if (virtual == null) lab.setText("is running (NIO, no virtual threads)...");
+          }
+          if (virtual != null) { // a virtual thread per connection
+            lab.setText("is running (virtual threads)...");
+            NanoDBWorker.serve(dbSvr, nanoMgr, virtual);
+            return;
+          }
+          int cores = Runtime.getRuntime().availableProcessors();
+          nio = new NanoDBNio(dbSvr, nanoMgr, Math.min(4, cores), NanoDBNio.newExecutor(Math.max(64, 8 * cores), 4096));
+          nio.start();
+          return;
         } catch (Exception e) { }
         if (go) try {
           dbSvr.close();
@@ -102,6 +123,7 @@ public class NanoDBServer extends JFrame {
     JPanel jptop = new JPanel();
     jptop.add(new JLabel("HostName/IP")); jptop.add(jhost);
     jptop.add(new JLabel("PortNumber")); jptop.add(jport);
+    jptop.add(jmode);
     jptop.add(lab);
     
     JPanel jpSouth = new JPanel(new GridLayout(2,1));
@@ -127,7 +149,9 @@ public class NanoDBServer extends JFrame {
   }
   //
   private NanoDBManager nanoMgr;
+  private NanoDBNio nio;
+  private ExecutorService virtual;
   private volatile boolean running = true;
   private ServerSocketChannel dbSvr = null;
  }
-  
\ No newline at end of file
+  
\ No newline at end of file
@@ -7,8 +7,15 @@ import java.util.concurrent.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
+import java.util.function.Consumer;
 /**
 NanoDBWorker, the counterpart of NanoDBConnect (or Client), spawned/started by NanoDBServer
+<br>- run(): serves its connection in blocking mode (one thread per connection). Pipelined requests
+<br>  are decoded from one read and executed in order without a round trip in between.
+<br>- execute(): executes one request (a NanoFrame, e.g. decoded by the event loops of NanoDBNio)
+<br>  and sends its reply as frames (NanoFrameChannel)
+<br>- serve(): one worker per accepted connection, e.g. on a virtual thread (newVirtualExecutor(), Java 21+).
+<br>  The blocking paths (log, compaction, locks) wait on ReentrantLocks or park: the carriers are not pinned.
 @author Joe T. Schwarz (c)
 */
 public class NanoDBWorker implements Runnable {
@@ -20,6 +27,7 @@ public class NanoDBWorker implements Runnable {
   public NanoDBWorker(SocketChannel soc, NanoDBManager nanoMgr) {
     this.soc = soc;
     this.nanoMgr = nanoMgr;
+    userID = String.format("ID%08X", System.nanoTime());
   }
   //
   public void run() {
@@ -27,114 +35,279 @@ public class NanoDBWorker implements Runnable {
       soc.socket().setTcpNoDelay(true);
       soc.socket().setSendBufferSize(65536);
       soc.socket().setReceiveBufferSize(65536);
-      ByteBuffer bbuf = ByteBuffer.allocate(65536);
-      String userID = String.format("ID%08X", System.nanoTime());
-      ByteArrayOutputStream bao = new ByteArrayOutputStream(65536);
+      NanoFrame.Decoder decoder = new NanoFrame.Decoder(NanoDBWorker::length, nanoMgr.getMaxMessage());
+      NanoFrameChannel out = new NanoFrameChannel(soc, nanoMgr.getChunkSize());
+      ByteBuffer in = ByteBuffer.allocate(16384); // a large request is decoded in its own array
       while(!nanoMgr.closed) {
-        bao.reset();
-        int dl = 0;
-        do {
-          bbuf.clear();
-          dl = soc.read(bbuf);
-          bao.write(bbuf.flip().array(), 0, dl);
-        } while (dl >= 65536);
-        byte[] buf, bb = bao.toByteArray();
-        //
-        // bb format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key length, 4 bytes: data Length, dbName, key, data
-        // bb format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key/data length, dbName, keye/data
-        // bb format: 1st byte: cmd, 2 bytes: key length, key or name
-        // bb format: 1st byte: cmd
-        //
-        // returned bb[0] = 0y00: OK, 0x01: error
-        // by OK: up bb[1]... replied data as Object as List or byte[]
-        //
-        dl = (((int)bb[1] & 0xFF) << 8)|((int)bb[2] & 0xFF);
-        int nl, kl, cmd = (int)bb[0] & 0xFF;
-        switch (cmd) {
-          case 0: // open(dbName, charsetName)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.open(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 1: // close(dbName)
-            soc.write(ByteBuffer.wrap(nanoMgr.close(userID, new String(bb, 3, dl))));
-            break;
-          case 2: // getKeys(dbName)
-            soc.write(ByteBuffer.wrap(nanoMgr.getKeys(new String(bb, 3, dl))));
-            break;
-          case 3: // autoCommit(dbName, true) or autoCommit(dbName, false)
-            soc.write(ByteBuffer.wrap(nanoMgr.autoCommit(new String(bb, 5, dl), bb[5+dl] == (byte)0x00)));
-            break;
-          case 4: // isAutoCommit(dbName)
-            soc.write(ByteBuffer.wrap(nanoMgr.isAutoCommit(new String(bb, 3, dl))));
-            break;
-          case 5: // lock(dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.lock(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 6: // unlock(dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.unlock(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 7: // isLocked(dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.isLocked(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 8: // isExisted(dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.isExisted(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 9: // isKeyDeleted(dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.isKeyDeleted(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 10: // readObject(userID, dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.readObject(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 11: // addObject(userID, dbName, key, byte[])
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
-            buf = new byte[nl];
-            System.arraycopy(bb, 9+dl+kl, buf, 0, nl);
-            soc.write(ByteBuffer.wrap(nanoMgr.addObject(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl), buf)));
-            break;
-          case 12: // deleteObject(userID, dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.deleteObject(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 13: // updateObject(userID, dbName, key, byte[])
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
-            buf = new byte[nl];
-            System.arraycopy(bb, 9+dl+kl, buf, 0, nl);
-            soc.write(ByteBuffer.wrap(nanoMgr.updateObject(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl), buf)));
-            break;
-          case 14: // commit(userID, dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.commit(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 15: // commitAll(userID, dbName)
-            soc.write(ByteBuffer.wrap(nanoMgr.commitAll(userID, new String(bb, 3, dl))));
-            break;
-          case 16: // rollback(userID, dbName, key)
-            kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
-            soc.write(ByteBuffer.wrap(nanoMgr.rollback(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
-            break;
-          case 17: // rollbackAll(userID, dbName)
-            soc.write(ByteBuffer.wrap(nanoMgr.rollbackAll(userID, new String(bb, 3, dl))));
-            break;
-          case 18: // disconnect()
-            soc.write(ByteBuffer.wrap(nanoMgr.disconnect(userID)));
+        in.clear();
+        if (soc.read(in) < 0) break; // disconnected
+        in.flip();
+        for (NanoFrame req = decoder.next(in); req != null; req = decoder.next(in))
+          if (!execute(req, out)) {
             soc.close();
             return;
-        }
+          }
       }
+      soc.close();
     } catch (Exception ex) {
       if (!nanoMgr.closed) try {
         soc.close();
       } catch (Exception e) { }
+    } finally {
+      release();
+    }
+  }
+  /**
+  release the locks and uncommitted changes of this connection (NanoDBManager.release()): it's closed
+  */
+  void release() {
+    if (!nanoMgr.closed) nanoMgr.release(userID);
+  }
+  /**
+  serve the connections of server in blocking mode: each accepted connection is run by a worker
+  <br>on executor (e.g. newVirtualExecutor(): one virtual thread per connection). Returns if server is closed.
+  <br>A failed accept (e.g. too many open files) is reported (NanoDBManager.failed()) and backed off.
+  @param server ServerSocketChannel, bound and in blocking mode
+  @param nanoMgr NanoDBManager
+  @param executor ExecutorService, one task per connection (it must not queue the connections)
+  */
+  public static void serve(ServerSocketChannel server, NanoDBManager nanoMgr, ExecutorService executor) {
+    for (int failed = 0; !nanoMgr.closed && server.isOpen(); ) {
+      SocketChannel soc = null;
+      try {
+        soc = server.accept();
+        executor.execute(new NanoDBWorker(soc, nanoMgr));
+        failed = 0;
+      } catch (Exception ex) {
+        if (soc != null) try {
+          soc.close();
+        } catch (Exception e) { }
+        if (nanoMgr.closed || !server.isOpen()) return;
+        nanoMgr.failed(ex);
+        try { // no tight loop
+          Thread.sleep(NanoDBManager.backoff(failed++));
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+  /**
+  an executor starting a virtual thread per task (Executors.newVirtualThreadPerTaskExecutor(), Java 21+)
+  @return ExecutorService, null if this JAVA has no virtual threads
+  */
+  public static ExecutorService newVirtualExecutor() {
+    try { // reflection: NanoDB is built with JAVA 17
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+  /**
+  length of the request in buffer (see format in process()), declared by its header: checked against
+  <br>the received request and the max. message size (NanoDBManager.setMaxMessage()) before it is allocated
+  @param bb ByteBuffer, the received bytes from 0 to position
+  @return long, length of the request, -1 if its header is incomplete or its cmd is unknown
+  */
+  static long length(ByteBuffer bb) {
+    int n = bb.position();
+    if (n < 3) return -1;
+    int cmd = bb.get(0) & 0xFF, dl = ((bb.get(1) & 0xFF) << 8)|(bb.get(2) & 0xFF);
+    if (cmd > LAST) return -1; // replied as failed by process()
+    if (cmd == 1 || cmd == 2 || cmd == 4 || cmd == 15 || cmd == 17 || cmd == 18) return 3+dl;
+    if (n < 5) return -1;
+    int kl = ((bb.get(3) & 0xFF) << 8)|(bb.get(4) & 0xFF);
+    if (cmd != 11 && cmd != 13 && cmd < 19) return 5+dl+kl;
+    if (n < 9) return -1;
+    return 9L+dl+kl+(bb.getInt(5) & 0xFFFFFFFFL);
+  }
+  /**
+  execute a request and send its reply framed with the request id
+  @param req NanoFrame, the request
+  @param out NanoFrameChannel of the connection
+  @return boolean false if the client is disconnected
+  @exception Exception thrown by JAVA
+  */
+  boolean execute(NanoFrame req, NanoFrameChannel out) throws Exception {
+    out.begin(req.id, req.opcode);
+    boolean go = process(req.data, out);
+    out.end();
+    return go;
+  }
+  /**
+  execute a lock request with timeout (cmd 22) without a waiting thread: its reply is sent on executor
+  <br>when the key is locked or the timeout is over. Other requests are not deferred.
+  @param req NanoFrame, the request
+  @param out NanoFrameChannel of the connection, not used by other requests until done is called
+  @param executor Executor sending the deferred reply
+  @param done Consumer, called after the deferred reply: true if it's sent, false if it failed
+  @return boolean true if the reply is deferred, false if req is not a lock request with timeout
+  @exception Exception thrown by JAVA
+  */
+  boolean defer(NanoFrame req, NanoFrameChannel out, Executor executor, Consumer<Boolean> done) throws Exception {
+    if (req.opcode != 22) return false;
+    byte[] bb = req.data;
+    int dl = (((int)bb[1] & 0xFF) << 8)|((int)bb[2] & 0xFF), kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+    nanoMgr.lock(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl), ByteBuffer.wrap(bb, 9+dl+kl, 4).getInt(), reply -> {
+      Runnable send = () -> {
+        try {
+          out.begin(req.id, req.opcode);
+          out.write(ByteBuffer.wrap(reply));
+          out.end();
+          done.accept(true);
+        } catch (Exception ex) {
+          done.accept(false);
+        }
+      };
+      try {
+        executor.execute(send);
+      } catch (RejectedExecutionException ex) {
+        send.run(); // saturated: by the granting (or timer) thread
+      }
+    });
+    return true;
+  }
+  /**
+  process one request and write the reply
+  @param bb byte array of the request
+  @param soc GatheringByteChannel for the reply
+  @return boolean false if the client is disconnected
+  @exception Exception thrown by JAVA
+  */
+  boolean process(byte[] bb, GatheringByteChannel soc) throws Exception {
+    byte[] buf;
+    //
+    // bb format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key length, 4 bytes: data Length, dbName, key, data
+    // bb format: 1st byte: cmd, 2 bytes: dbName length, 2 bytes: key/data length, dbName, keye/data
+    // bb format: 1st byte: cmd, 2 bytes: key length, key or name
+    // bb format: 1st byte: cmd
+    //
+    // returned bb[0] = 0y00: OK, 0x01: error
+    // by OK: up bb[1]... replied data as Object as List or byte[]
+    //
+    if (bb.length < 3 || ((int)bb[0] & 0xFF) > LAST) { // unknown or truncated: replied as failed, the frame has the id
+      soc.write(ByteBuffer.wrap((""+(char)0x01+"Invalid request "+(bb.length > 0? (int)bb[0] & 0xFF:-1)).getBytes()));
+      return true;
+    }
+    int dl = (((int)bb[1] & 0xFF) << 8)|((int)bb[2] & 0xFF);
+    int nl, kl, cmd = (int)bb[0] & 0xFF;
+    switch (cmd) {
+      case 0: // open(dbName, charsetName)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.open(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 1: // close(dbName)
+        soc.write(ByteBuffer.wrap(nanoMgr.close(userID, new String(bb, 3, dl))));
+        break;
+      case 2: // getKeys(dbName)
+        soc.write(ByteBuffer.wrap(nanoMgr.getKeys(new String(bb, 3, dl))));
+        break;
+      case 3: // autoCommit(dbName, true) or autoCommit(dbName, false)
+        soc.write(ByteBuffer.wrap(nanoMgr.autoCommit(new String(bb, 5, dl), bb[5+dl] == (byte)0x00)));
+        break;
+      case 4: // isAutoCommit(dbName)
+        soc.write(ByteBuffer.wrap(nanoMgr.isAutoCommit(new String(bb, 3, dl))));
+        break;
+      case 5: // lock(dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.lock(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 6: // unlock(dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.unlock(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 7: // isLocked(dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.isLocked(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 8: // isExisted(dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.isExisted(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 9: // isKeyDeleted(dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.isKeyDeleted(new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 10: // readObject(userID, dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nanoMgr.readObject(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl), soc);
+        break;
+      case 11: // addObject(userID, dbName, key, byte[])
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
+        buf = new byte[nl];
+        System.arraycopy(bb, 9+dl+kl, buf, 0, nl);
+        soc.write(ByteBuffer.wrap(nanoMgr.addObject(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl), buf)));
+        break;
+      case 12: // deleteObject(userID, dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.deleteObject(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 13: // updateObject(userID, dbName, key, byte[])
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
+        buf = new byte[nl];
+        System.arraycopy(bb, 9+dl+kl, buf, 0, nl);
+        soc.write(ByteBuffer.wrap(nanoMgr.updateObject(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl), buf)));
+        break;
+      case 14: // commit(userID, dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.commit(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 15: // commitAll(userID, dbName)
+        soc.write(ByteBuffer.wrap(nanoMgr.commitAll(userID, new String(bb, 3, dl))));
+        break;
+      case 16: // rollback(userID, dbName, key)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.rollback(userID, new String(bb, 5, dl), new String(bb, 5+dl, kl))));
+        break;
+      case 17: // rollbackAll(userID, dbName)
+        soc.write(ByteBuffer.wrap(nanoMgr.rollbackAll(userID, new String(bb, 3, dl))));
+        break;
+      case 19: // scan(dbName, fromKey, limit+toKey)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.scan(new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                               new String(bb, 13+dl+kl, nl-4), ByteBuffer.wrap(bb, 9+dl+kl, 4).getInt())));
+        break;
+      case 20: // scanPrefix(dbName, prefix, limit)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.scanPrefix(new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                                     ByteBuffer.wrap(bb, 9+dl+kl, 4).getInt())));
+        break;
+      case 21: // getKeys(dbName, token, limit): chunk of keys after token
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.getKeys(new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                                  ByteBuffer.wrap(bb, 9+dl+kl, 4).getInt())));
+        break;
+      case 22: // lock(dbName, key, timeout): reply when locked or timed out
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.lock(userID, new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                               ByteBuffer.wrap(bb, 9+dl+kl, 4).getInt())));
+        break;
+      case 23: // commit(userID, dbName, transaction)
+        soc.write(ByteBuffer.wrap(nanoMgr.commit(userID, new String(bb, 9, dl), bb, 9+dl)));
+        break;
+      case 24: // addIndex(dbName, name, field)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.addIndex(new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                                   new String(bb, 9+dl+kl, nl))));
+        break;
+      case 25: // findByIndex(dbName, name, value)
+        kl = (((int)bb[3] & 0xFF) << 8)|((int)bb[4] & 0xFF);
+        nl = (((int)bb[5] & 0xFF) << 24)|(((int)bb[6] & 0xFF) << 16)|(((int)bb[7] & 0xFF) << 8)|((int)bb[8] & 0xFF);
+        soc.write(ByteBuffer.wrap(nanoMgr.findByIndex(new String(bb, 9, dl), new String(bb, 9+dl, kl),
+                                                      new String(bb, 9+dl+kl, nl))));
+        break;
+      case 18: // disconnect()
+        soc.write(ByteBuffer.wrap(nanoMgr.disconnect(userID)));
+        return false;
     }
+    return true;
   }
+  private static final int LAST = 25; // the last cmd
   private SocketChannel soc;
+  private String userID;
   private NanoDBManager nanoMgr;
 }
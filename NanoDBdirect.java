@@ -172,7 +172,7 @@ public class NanoDBdirect extends JFrame {
         long t0 = System.nanoTime();
         for (String key : keys) {
           try {
-            nano.lock(userID, key);
+            if (!nano.lock(userID, key, 1000)) throw new Exception(key+" is locked by other.");
             nano.updateObject(userID, key, nano.readObject(userID, key));
             nano.commit(userID, key);
             nano.unlock(userID, key);
@@ -0,0 +1,70 @@
+package nanodb;
+//
+import java.util.zip.*;
+/**
+NanoDeflater, the NanoCodec of java.util.zip (id: 1). Deflater and Inflater are reused per thread.
+@author Joe T. Schwarz (c)
+*/
+public class NanoDeflater implements NanoCodec {
+  /**
+  constructor, default compression level
+  */
+  public NanoDeflater() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+  /**
+  constructor
+  @param level int, compression level (0..9, -1: default)
+  */
+  public NanoDeflater(int level) {
+    deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+  }
+  /**
+  @return int, the codec id 1
+  */
+  public int id() {
+    return 1;
+  }
+  /**
+  compress
+  @param data byte array
+  @return byte array of the compressed data, null if data cannot be compressed (not smaller)
+  */
+  public byte[] compress(byte[] data) {
+    Deflater def = deflaters.get();
+    def.reset();
+    def.setInput(data);
+    def.finish();
+    byte[] buf = new byte[data.length];
+    int n = 0;
+    while (!def.finished() && n < buf.length) n += def.deflate(buf, n, buf.length - n);
+    if (!def.finished()) return null;
+    return java.util.Arrays.copyOf(buf, n);
+  }
+  /**
+  decompress
+  @param buf byte array of the compressed data
+  @param off int, offset of the compressed data in buf
+  @param len int, length of the compressed data
+  @param size int, size of the decompressed data
+  @return byte array of the decompressed data
+  @exception Exception thrown by JAVA or if the compressed data is corrupted
+  */
+  public byte[] decompress(byte[] buf, int off, int len, int size) throws Exception {
+    Inflater inf = inflaters.get();
+    inf.reset();
+    inf.setInput(buf, off, len);
+    byte[] data = new byte[size];
+    int n = 0;
+    while (n < size) {
+      int i = inf.inflate(data, n, size - n);
+      if (i == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) break;
+      n += i;
+    }
+    if (n != size) throw new Exception("Corrupted record");
+    return data;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+  private ThreadLocal<Deflater> deflaters;
+}
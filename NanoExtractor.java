@@ -0,0 +1,81 @@
+package nanodb;
+//
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.function.Function;
+/**
+NanoExtractor, the index key extractor of a secondary index (see NanoDB.addIndex()).
+<br>It maps the data of a record to its index key. The records with null (or an exception) are not indexed.
+<br>The extractor of an index name must never change: the index is persisted under its name.
+<br>The records of untrusted clients must be deserialized with an allow-list filter (ObjectInputFilter).
+@author Joe T. Schwarz (c)
+*/
+public interface NanoExtractor {
+  /**
+  extract
+  @param data byte array of the record (decompressed)
+  @return String, the index key, null: record is not indexed
+  @exception Exception thrown by JAVA
+  */
+  String extract(byte[] data) throws Exception;
+  /**
+  of a function of the deserialized object (not filtered)
+  @param fct Function of the deserialized object to the index key
+  @return NanoExtractor
+  */
+  static NanoExtractor of(Function<Object, String> fct) {
+    return of(fct, null);
+  }
+  /**
+  of a function of the deserialized object
+  @param fct Function of the deserialized object to the index key
+  @param filter ObjectInputFilter, the allow-list of the deserialized classes. null: not filtered
+  @return NanoExtractor
+  */
+  static NanoExtractor of(Function<Object, String> fct, ObjectInputFilter filter) {
+    return data -> {
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+        if (filter != null) ois.setObjectInputFilter(filter);
+        return fct.apply(ois.readObject());
+      }
+    };
+  }
+  /**
+  field of the deserialized object: the value of its field or getter (e.g. "image" or "getImage")
+  <br>as String (not filtered)
+  @param name String, field or getter name
+  @return NanoExtractor
+  */
+  static NanoExtractor field(String name) {
+    return field(name, null);
+  }
+  /**
+  field of the deserialized object: the value of its field or getter (e.g. "image" or "getImage")
+  <br>as String. Used by the server (NanoDBConnect.addIndex()) with its allow-list of the classes.
+  @param name String, field or getter name
+  @param filter ObjectInputFilter, the allow-list of the deserialized classes. null: not filtered
+  @return NanoExtractor
+  */
+  static NanoExtractor field(String name, ObjectInputFilter filter) {
+    return of(obj -> {
+      for (Class<?> c = obj.getClass(); c != null; c = c.getSuperclass()) try {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        Object v = f.get(obj);
+        return v != null? v.toString():null;
+      } catch (NoSuchFieldException ex) {
+        // superclass
+      } catch (Exception ex) {
+        return null;
+      }
+      try {
+        Method m = obj.getClass().getMethod(name);
+        m.setAccessible(true);
+        Object v = m.invoke(obj);
+        return v != null? v.toString():null;
+      } catch (Exception ex) {
+        return null;
+      }
+    }, filter);
+  }
+}
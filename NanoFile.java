@@ -0,0 +1,729 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+/**
+NanoFile, one generation of a NanoDB file.
+<br>Format 2: the manifest fName and the segment files fName#0, fName#1, ... of max. segment size.
+<br>- Manifest: magic, version, stamp, segment size, number of segments, segments (id and live bytes),
+<br>  number of retired segments, their ids, number of keys and the key block
+<br>- A NanoDB name must not contain '#' (SEPARATOR): no other file is taken for a segment. The segments
+<br>  replaced by a merge are recorded as retired by its manifest and only these are deleted (purge()).
+<br>- The key entry in the key block has 4 fields: key length, data/record size, data pointer, key itself
+<br>- The data pointer is 64 bit: segment id (high 24 bits) and offset in the segment (low 40 bits).
+<br>  A record never straddles 2 segments.
+<br>- The top bit of the record size flags an encoded record (see NanoCodecs).
+<br>- A NanoFile is never modified. The committed changes go to NanoLog and are merged into a new NanoFile:
+<br>  a segment with few dead records is kept, the live records of the others are copied into fresh segments.
+<br>  The fresh segments are written in parallel.
+<br>Format 1: key block pointer (4 bytes), key block (key length, data size, key) and data block in fName.
+<br>It's only read and upgraded to format 2 by NanoDB.open().
+<br>- If mapped the segments are read via MappedByteBuffers: no syscall, no shared file position.
+<br>- Otherwise by positional FileChannel reads (thread-safe, no seek) through a reusable direct buffer per thread.
+<br>- A replaced NanoFile is closed when the last snapshot which pins it is released. close() unmaps the
+<br>  segments and the index when their readers are done (enter(), exit()): a closed file can be replaced
+<br>  or deleted at once, even where a mapped file can't (e.g. Windows).
+<br>- The keys are looked up in the persistent NanoIndex fName_idx. The key block is only parsed if the index
+<br>  is missing or stale, the index is then rebuilt. The key block is split into chunks which are parsed
+<br>  in parallel on the ForkJoinPool and then appended to the key directory in file order.
+@author Joe T. Schwarz (c)
+*/
+class NanoFile {
+  /**
+  constructor
+  @param fName  String, file name
+  @param cs Charset of the keys
+  @param mapped boolean, true: read via MappedByteBuffers (FileChannel if mapping is unavailable)
+  @param segSize long, max. size of the fresh segments
+  */
+  NanoFile(String fName, Charset cs, boolean mapped, long segSize) {
+    this.fName = fName;
+    this.mapped = mapped;
+    this.segSize = segSize;
+    this.cs = cs;
+  }
+  /**
+  open (and lock) the file and map its index. The key block is loaded only if the index is missing or stale.
+  @exception Exception thrown by JAVA
+  */
+  void open() throws Exception {
+    if (new File(fName).getName().indexOf(SEPARATOR) >= 0)
+      throw new Exception("Invalid NanoDB name "+fName+": '"+SEPARATOR+"' is reserved for the segment files");
+    raf = new RandomAccessFile(fName, "rw");
+    fLocked = raf.getChannel().lock();
+    dir = new NanoKeys(cs, 16);
+    long len = raf.length(), time = new File(fName).lastModified();
+    if (len == 0) return; // new file: format 2 without segments
+    if (len < 4) throw new Exception(fName+" is corrupted");
+    byte[] hdr = new byte[(int)Math.min(len, 8)]; // format 1 of an empty NanoDB: only the key block pointer
+    read(raf.getChannel(), 0, hdr);
+    ByteBuffer bb = ByteBuffer.wrap(hdr);
+    if (len >= 8 && bb.getInt(0) == MAGIC && bb.getInt(4) == 2) openSegments(len, time);
+    else openLegacy(bb.getInt(0) & 0xFFFFFFFFL);
+  }
+  /**
+  @return int, the format version (1: to be upgraded)
+  */
+  int version() {
+    return version;
+  }
+  /**
+  @return int, the stamp of the manifest (incremented by each merge)
+  */
+  int stamp() {
+    return stamp;
+  }
+  /**
+  @return String array of keys in file order
+  */
+  String[] keys() {
+    if (!enter()) return new String[0];
+    try {
+      return index != null? index.keys():dir.keys();
+    } finally {
+      exit();
+    }
+  }
+  /**
+  the keys of this file in key order from fromKey (inclusive): read from the order of the index.
+  <br>The iterator must be used between enter() and exit()
+  @param fromKey String, null: from the first key
+  @return Iterator of the keys
+  */
+  Iterator<String> keys(String fromKey) {
+    return index != null? index.keys(fromKey):dir.keys(fromKey);
+  }
+  /**
+  contains
+  @param key String
+  @return boolean true if key is in this file (dead or alive)
+  */
+  boolean contains(String key) {
+    return size(key) != -1;
+  }
+  /**
+  read the record of key
+  @param key String
+  @param encoded boolean, true: as encoded record, false: as raw data (see NanoCodecs)
+  @return byte array of the record
+  @exception Exception thrown by JAVA
+  */
+  byte[] read(String key, boolean encoded) throws Exception {
+    if (!enter()) throw new Exception(fName+" is closed");
+    try {
+      return readMapped(key, encoded);
+    } finally {
+      exit();
+    }
+  }
+  // read the record of key from the mapped (or file) segments
+  private byte[] readMapped(String key, boolean encoded) throws Exception {
+    long pt;
+    int dl;
+    if (index != null) {
+      int e = index.find(key);
+      if (e < 0) throw new Exception("Unknown "+key);
+      pt = index.pointer(e);
+      dl = index.size(e);
+    } else {
+      int e = dir.find(key);
+      if (e < 0) throw new Exception("Unknown "+key);
+      pt = dir.pointer(e);
+      dl = dir.size(e);
+    }
+    byte[] buf = new byte[dl & ~NanoCodecs.FLAG];
+    MappedByteBuffer[] mbs = chunks;
+    if (version == 1) {
+      if (mbs != null) { // a record can span 2 chunks
+        for (int n = 0, l; n < buf.length; n += l) {
+          long p = pt + n;
+          ByteBuffer bb = mbs[(int)(p / CHUNK)].duplicate();
+          bb.position((int)(p % CHUNK));
+          l = Math.min(bb.remaining(), buf.length - n);
+          bb.get(buf, n, l);
+        }
+      } else read(raf.getChannel(), pt, buf);
+    } else {
+      int s = segment(pt);
+      if (mbs != null && mbs[s] != null) {
+        ByteBuffer bb = mbs[s].duplicate();
+        bb.position((int)(pt & OFFSET));
+        bb.get(buf);
+      } else read(segs[s].getChannel(), pt & OFFSET, buf);
+    }
+    return NanoCodecs.convert(buf, dl < 0, encoded);
+  }
+  /**
+  transfer the data of key to a channel after head without a copy on the JAVA heap:
+  <br>by FileChannel.transferTo() or (mapped) by a gathering write of head and the mapped data.
+  @param key String
+  @param head ByteBuffer, written before the data
+  @param ch GatheringByteChannel, e.g. a SocketChannel in blocking mode, a NanoDBChannel or a NanoFrameChannel
+  @return boolean true if transferred, false if not possible (encoded record or format 1): nothing written
+  @exception Exception thrown by JAVA, e.g. key is unknown
+  */
+  boolean transfer(String key, ByteBuffer head, GatheringByteChannel ch) throws Exception {
+    if (!enter()) throw new Exception(fName+" is closed");
+    try {
+      return transferMapped(key, head, ch);
+    } finally {
+      exit();
+    }
+  }
+  // transfer the data of key from the mapped (or file) segments
+  private boolean transferMapped(String key, ByteBuffer head, GatheringByteChannel ch) throws Exception {
+    long pt = pointer(key);
+    int dl = size(key);
+    if (pt < 0) throw new Exception("Unknown "+key);
+    if (dl < 0 || version == 1) return false;
+    int s = segment(pt);
+    long off = pt & OFFSET;
+    MappedByteBuffer[] mbs = chunks;
+    if (mbs != null && mbs[s] != null) {
+      ByteBuffer bb = mbs[s].duplicate();
+      bb.limit((int)off + dl).position((int)off);
+      ByteBuffer[] bbs = { head, bb };
+      while (head.hasRemaining() || bb.hasRemaining()) ch.write(bbs); // also a record of 0 bytes
+    } else {
+      while (head.hasRemaining()) ch.write(head);
+      FileChannel fc = segs[s].getChannel();
+      if (ch instanceof NanoFrameChannel) ((NanoFrameChannel)ch).transferFrom(fc, off, dl); // framed
+      else if (ch instanceof NanoDBChannel) ((NanoDBChannel)ch).transferFrom(fc, off, dl); // non-blocking socket
+      else for (long n = 0; n < dl; ) n += fc.transferTo(off + n, dl - n, ch);
+    }
+    return true;
+  }
+  /**
+  @return boolean true if the file is read via MappedByteBuffers
+  */
+  boolean isMapped() {
+    return chunks != null;
+  }
+  /**
+  mark the record of key as dead (deleted or updated by a committed change)
+  @param key String
+  */
+  void stale(String key) {
+    int dl = size(key);
+    if (dl != -1 && staled.add(key)) garbage.addAndGet(dl & ~NanoCodecs.FLAG);
+  }
+  /**
+  isStored
+  @param key String
+  @return boolean true if the committed data of key is in this file (not dead)
+  */
+  boolean isStored(String key) {
+    return contains(key) && !staled.contains(key);
+  }
+  /**
+  @return long, the size of the dead records
+  */
+  long garbage() {
+    return garbage.get();
+  }
+  /**
+  @return long, the file size (manifest and segments)
+  @exception Exception thrown by JAVA
+  */
+  long length() throws Exception {
+    long len = raf.length();
+    for (RandomAccessFile rs : segs) len += rs.length();
+    return len;
+  }
+  /**
+  merge the live records of this file with the committed changes into the fresh manifest tmp (format 2).
+  <br>A segment whose dead records are at most 1/4 of its size is kept as it is. The live records of the
+  <br>other segments (format 1: all records) and the changes are packed into fresh segments which are
+  <br>written in parallel. The records are copied in chunks by the file channels without touching
+  <br>the readers of this file. The loaded records (bulk load) are then streamed sequentially into
+  <br>more fresh segments. The index of the fresh file is written to tmp_idx.
+  @param tmp String, name of the fresh manifest
+  @param changes HashMap of key and committed data (null: deleted)
+  @param encoded boolean, true: the committed and the loaded data are encoded records
+  @param loaded Iterator of new keys and their data, null: none
+  @return NanoFile of the fresh file with the name of this file (not yet opened)
+  @exception Exception thrown by JAVA
+  */
+  NanoFile merge(String tmp, HashMap<String, byte[]> changes, boolean encoded,
+                 Iterator<Map.Entry<String, byte[]>> loaded) throws Exception {
+    String[] old = keys(), cks = changes.keySet().toArray(new String[0]);
+    int n = version == 1? 1:ids.length;
+    long[] lives = new long[n], ptrs = new long[old.length];
+    int[] sizes = new int[old.length];
+    for (int i = 0; i < old.length; ++i) {
+      ptrs[i] = -1;
+      if (changes.containsKey(old[i])) continue;
+      ptrs[i] = pointer(old[i]);
+      sizes[i] = size(old[i]);
+      lives[segment(ptrs[i])] += sizes[i] & ~NanoCodecs.FLAG;
+    }
+    ArrayList<Integer> nIds = new ArrayList<>();
+    ArrayList<Long> nLives = new ArrayList<>();
+    boolean[] copy = new boolean[n];
+    for (int s = 0; s < n; ++s) {
+      long len = version == 1? raf.length():segs[s].length();
+      copy[s] = version == 1 || 4 * (len - lives[s]) > len;
+      if (!copy[s] && lives[s] > 0) {
+        nIds.add(ids[s]);
+        nLives.add(lives[s]);
+      }
+    }
+    NanoKeys nd = new NanoKeys(cs, old.length + cks.length);
+    // the records of the kept segments keep their pointers
+    for (int i = 0; i < old.length; ++i) if (ptrs[i] >= 0 && !copy[segment(ptrs[i])]) {
+      byte[] kb = old[i].getBytes(cs);
+      nd.add(kb, 0, kb.length, ptrs[i], sizes[i]);
+    }
+    // the copied records and the changes are packed into fresh segments
+    int first = nd.count(), id = 0;
+    for (int s : ids) id = Math.max(id, s + 1);
+    for (int s : retired) id = Math.max(id, s + 1); // a retired segment may still exist
+    int base = id;
+    long[] src = new long[old.length + cks.length - first]; // old pointer or -1-change
+    ArrayList<int[]> fresh = new ArrayList<>(); // id and first entry
+    long off = 0;
+    for (int j = 0; j < old.length + cks.length; ++j) {
+      String key;
+      int dl;
+      if (j < old.length) {
+        if (ptrs[j] < 0 || !copy[segment(ptrs[j])]) continue;
+        key = old[j];
+        dl = sizes[j];
+        src[nd.count() - first] = ptrs[j];
+      } else {
+        byte[] bb = changes.get(cks[j - old.length]);
+        if (bb == null) continue;
+        key = cks[j - old.length];
+        dl = bb.length | (encoded? NanoCodecs.FLAG:0);
+        src[nd.count() - first] = old.length - 1 - j;
+      }
+      int len = dl & ~NanoCodecs.FLAG;
+      if (fresh.isEmpty() || off > 0 && off + len > segSize) { // next segment
+        if (!fresh.isEmpty()) nLives.add(off);
+        fresh.add(new int[] { id, nd.count() });
+        nIds.add(id++);
+        off = 0;
+      }
+      byte[] kb = key.getBytes(cs);
+      nd.add(kb, 0, kb.length, ((long)fresh.get(fresh.size()-1)[0] << 40) | off, dl);
+      off += len;
+    }
+    if (!fresh.isEmpty()) nLives.add(off);
+    // write the fresh segments in parallel
+    ArrayList<Callable<Object>> tasks = new ArrayList<>();
+    for (int g = 0; g < fresh.size(); ++g) {
+      int[] seg = fresh.get(g);
+      int end = g + 1 < fresh.size()? fresh.get(g+1)[1]:nd.count();
+      tasks.add(() -> {
+        fill(segment(seg[0]), nd, seg[1], end, src, first, cks, changes);
+        return null;
+      });
+    }
+    try {
+      if (tasks.size() > 0) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(tasks.size(),
+                                                            Runtime.getRuntime().availableProcessors()));
+        try {
+          for (Future<Object> f : pool.invokeAll(tasks)) f.get();
+        } finally {
+          pool.shutdown();
+        }
+      }
+      if (loaded != null) load(loaded, encoded, nd, nIds, nLives, id);
+    } catch (Exception ex) { // remove the fresh segments
+      for (int s : nIds) if (s >= base) new File(segment(s)).delete();
+      throw ex instanceof ExecutionException && ex.getCause() instanceof Exception? (Exception)ex.getCause():ex;
+    }
+    // the replaced segments and the retired ones which still exist are retired by the fresh file
+    TreeSet<Integer> gone = new TreeSet<>();
+    if (version == 2) for (int s : ids) if (!nIds.contains(s)) gone.add(s);
+    for (int s : retired) if (new File(segment(s)).exists()) gone.add(s);
+    // the manifest
+    int st = stamp + 1;
+    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+      out.writeInt(MAGIC);
+      out.writeInt(2);
+      out.writeInt(st);
+      out.writeLong(segSize);
+      out.writeInt(nIds.size());
+      for (int s = 0; s < nIds.size(); ++s) {
+        out.writeInt(nIds.get(s));
+        out.writeLong(nLives.get(s));
+      }
+      out.writeInt(gone.size());
+      for (int s : gone) out.writeInt(s);
+      out.writeLong(nd.count());
+      for (int e = 0; e < nd.count(); ++e) {
+        byte[] kb = nd.bytes(e);
+        out.writeShort(kb.length);
+        out.writeInt(nd.size(e));
+        out.writeLong(nd.pointer(e));
+        out.write(kb);
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+    File f = new File(tmp);
+    NanoIndex.write(tmp+"_idx", nd, f.length(), f.lastModified(), st);
+    return new NanoFile(fName, cs, mapped, segSize);
+  }
+  /**
+  delete the retired segment files (replaced by the merge of this file). A retired segment which can't
+  <br>be deleted yet (e.g. mapped by a reader on Windows) stays retired by the next merge.
+  <br>The fresh segments of a crashed merge are overwritten by the next merge.
+  */
+  void purge() {
+    for (int s : retired) if (Arrays.binarySearch(ids, s) < 0) new File(segment(s)).delete();
+  }
+  /**
+  enter the file as a reader of its mappings: they are not unmapped by close() until exit()
+  @return boolean true if entered, false if the file is closed (nothing to exit)
+  */
+  boolean enter() {
+    readers.incrementAndGet();
+    if (!closed) return true;
+    readers.decrementAndGet();
+    return false;
+  }
+  /**
+  exit the file as a reader (see enter())
+  */
+  void exit() {
+    readers.decrementAndGet();
+  }
+  /**
+  pin the file for a snapshot
+  @return boolean true if pinned, false if the file is already closed
+  */
+  synchronized boolean retain() {
+    if (closed) return false;
+    ++pins;
+    return true;
+  }
+  /**
+  unpin the file. The replaced file is closed by the last unpin.
+  @exception IOException thrown by JAVA
+  */
+  void release() throws IOException {
+    synchronized(this) {
+      if (--pins > 0 || !replaced) return;
+    }
+    close();
+  }
+  /**
+  the file is replaced by a merged file: close it now or by the last unpin
+  @exception IOException thrown by JAVA
+  */
+  void replace() throws IOException {
+    synchronized(this) {
+      replaced = true;
+      if (pins > 0) return;
+    }
+    close();
+  }
+  /**
+  unlock and close the file. The mappings are released when the entered readers are done.
+  @exception IOException thrown by JAVA
+  */
+  void close() throws IOException {
+    synchronized(this) {
+      if (closed) return;
+      closed = true;
+    }
+    while (readers.get() > 0) Thread.yield(); // no new reader enters
+    MappedByteBuffer[] mbs = chunks;
+    chunks = null;
+    if (mbs != null) for (MappedByteBuffer mb : mbs) unmap(mb);
+    if (index != null) unmap(index.buffer());
+    for (RandomAccessFile rs : segs) rs.close();
+    fLocked.release();
+    raf.close();
+  }
+  // format 2: the manifest and the segments
+  private void openSegments(long len, long time) throws Exception {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel().position(8)), 65536));
+    stamp = in.readInt();
+    in.readLong(); // segment size of the writer
+    int n = in.readInt();
+    ids = new int[n];
+    segs = new RandomAccessFile[n];
+    long dead = 0;
+    for (int s = 0; s < n; ++s) {
+      ids[s] = in.readInt();
+      long live = in.readLong();
+      segs[s] = new RandomAccessFile(segment(ids[s]), "r");
+      dead += segs[s].length() - live;
+    }
+    retired = new int[in.readInt()];
+    for (int r = 0; r < retired.length; ++r) retired[r] = in.readInt();
+    garbage.set(dead);
+    if (mapped) try {
+      MappedByteBuffer[] mbs = new MappedByteBuffer[n];
+      for (int s = 0; s < n; ++s) {
+        FileChannel fc = segs[s].getChannel();
+        if (fc.size() <= Integer.MAX_VALUE) mbs[s] = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+      }
+      chunks = mbs;
+    } catch (Exception ex) { // e.g. out of address space
+      chunks = null;
+    }
+    long count = in.readLong(), kbp = 36 + 12L * n + 4L * retired.length; // the key block
+    index = NanoIndex.open(fName+"_idx", cs, len, time, stamp);
+    if (index != null) return;
+    if (len - kbp <= Integer.MAX_VALUE) {
+      MappedByteBuffer kb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, kbp, len - kbp);
+      dir = parse(kb, 0);
+      unmap(kb); // parsed into dir
+    }
+    else { // the key block is too large for one mapping and is streamed. Its keys must fit in one array
+      long keyBytes = len - kbp - 14 * count;
+      if (count > Integer.MAX_VALUE - 8 || keyBytes > Integer.MAX_VALUE - 8)
+        throw new Exception(fName+": the key block ("+count+" keys, "+keyBytes+" bytes) is too large to load");
+      dir = new NanoKeys(cs, (int)count);
+      byte[] kb = new byte[256];
+      for (long k = 0; k < count; ++k) {
+        int kl = in.readUnsignedShort(), dl = in.readInt();
+        long pt = in.readLong();
+        if (kl > kb.length) kb = new byte[kl];
+        in.readFully(kb, 0, kl);
+        dir.add(kb, 0, kl, pt, dl);
+      }
+    }
+    // rebuild the index for the next open(). Without index the parsed key block is used
+    try {
+      NanoIndex.write(fName+"_idx_tmp", dir, len, time, stamp);
+      Files.move(Paths.get(fName+"_idx_tmp"), Paths.get(fName+"_idx"), StandardCopyOption.REPLACE_EXISTING,
+                                                                       StandardCopyOption.ATOMIC_MOVE);
+    } catch (Exception ex) {
+      new File(fName+"_idx_tmp").delete();
+    }
+  }
+  // format 1: key block pointer + key block + data block. It's upgraded by NanoDB.open()
+  private void openLegacy(long pt) throws Exception {
+    version = 1;
+    if (mapped) map();
+    byte[] all = new byte[(int)(pt-4)];
+    read(raf.getChannel(), 4, all); // get the KeysList block
+    dir = parse(ByteBuffer.wrap(all), pt);
+  }
+  // parse the key block: chunks of STEP entries on the ForkJoinPool, appended in file order.
+  // Entry format 2: key length, data size, pointer, key = 2+4+8+k bytes
+  // Entry format 1: key length, data size, key = 2+4+k bytes. The pointers follow from pt and the sizes
+  private NanoKeys parse(ByteBuffer blk, long pt) {
+    int hl = version == 1? 6:14, total = 0;
+    ArrayList<long[]> chunks = new ArrayList<>(); // position, number of entries, pointer
+    for (int p = 0; p < blk.limit(); ++total) { // skip through the entries to the chunk borders
+      if (total % STEP == 0) chunks.add(new long[] { p, 0, pt });
+      ++chunks.get(chunks.size()-1)[1];
+      if (version == 1) pt += blk.getInt(p+2) & ~NanoCodecs.FLAG;
+      p += hl + (blk.getShort(p) & 0xFFFF);
+    }
+    NanoKeys[] parts = IntStream.range(0, chunks.size()).parallel().mapToObj(c -> {
+      long[] chunk = chunks.get(c);
+      NanoKeys part = new NanoKeys(cs, (int)chunk[1]);
+      ByteBuffer bb = blk.duplicate();
+      bb.position((int)chunk[0]);
+      byte[] kb = new byte[256];
+      for (long i = 0, p = chunk[2]; i < chunk[1]; ++i) {
+        int kl = bb.getShort() & 0xFFFF, dl = bb.getInt();
+        if (version == 2) p = bb.getLong();
+        if (kl > kb.length) kb = new byte[kl];
+        bb.get(kb, 0, kl);
+        part.add(kb, 0, kl, p, dl);
+        p += dl & ~NanoCodecs.FLAG;
+      }
+      return part;
+    }).toArray(NanoKeys[]::new);
+    NanoKeys keys = new NanoKeys(cs, total);
+    for (NanoKeys part : parts) keys.addAll(part);
+    return keys;
+  }
+  // stream the loaded records through large buffers into fresh segments from id on
+  private void load(Iterator<Map.Entry<String, byte[]>> loaded, boolean encoded, NanoKeys nd,
+                    ArrayList<Integer> nIds, ArrayList<Long> nLives, int id) throws Exception {
+    FileOutputStream fos = null;
+    OutputStream out = null;
+    long off = 0;
+    try {
+      while (loaded.hasNext()) {
+        Map.Entry<String, byte[]> e = loaded.next();
+        byte[] kb = e.getKey().getBytes(cs), bb = e.getValue();
+        if (kb.length > 0xFFFF) throw new Exception("Key too long: "+e.getKey());
+        if (nd.find(e.getKey()) >= 0) throw new Exception(e.getKey()+" exists.");
+        if (out == null || off > 0 && off + bb.length > segSize) { // next segment
+          if (out != null) {
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            nLives.add(off);
+          }
+          fos = new FileOutputStream(segment(id));
+          out = new BufferedOutputStream(fos, 0x100000);
+          nIds.add(id++);
+          off = 0;
+        }
+        nd.add(kb, 0, kb.length, ((long)(id - 1) << 40) | off, bb.length | (encoded? NanoCodecs.FLAG:0));
+        out.write(bb);
+        off += bb.length;
+      }
+      if (out != null) {
+        out.flush();
+        fos.getFD().sync();
+        nLives.add(off);
+      }
+    } finally {
+      if (out != null) out.close();
+    }
+  }
+  // write the fresh segment sName: the entries from ... end of nd
+  private void fill(String sName, NanoKeys nd, int from, int end, long[] src, int first,
+                    String[] cks, HashMap<String, byte[]> changes) throws Exception {
+    try (RandomAccessFile rs = new RandomAccessFile(sName, "rw")) {
+      rs.setLength(0);
+      FileChannel dst = rs.getChannel(), sc = null;
+      long beg = -1, last = -1;
+      for (int e = from; e < end; ++e) {
+        long sp = src[e - first];
+        if (sp >= 0) { // adjacent live records are copied as one chunk
+          FileChannel fc = channel(sp);
+          long p = version == 1? sp:sp & OFFSET;
+          if (fc != sc || p != last || last-beg >= 0x400000) { // not adjacent or chunk (4MB) full
+            if (beg >= 0) transfer(sc, beg, last-beg, dst);
+            sc = fc;
+            beg = p;
+          }
+          last = p + (nd.size(e) & ~NanoCodecs.FLAG);
+        } else {
+          if (beg >= 0) transfer(sc, beg, last-beg, dst);
+          beg = last = -1;
+          ByteBuffer bb = ByteBuffer.wrap(changes.get(cks[(int)(-1 - sp)]));
+          while (bb.hasRemaining()) dst.write(bb, dst.size());
+        }
+      }
+      if (beg >= 0) transfer(sc, beg, last-beg, dst);
+      rs.getFD().sync();
+    }
+  }
+  // the name of segment id
+  private String segment(int id) {
+    return fName+SEPARATOR+id;
+  }
+  // the segment number of data pointer pt
+  private int segment(long pt) throws Exception {
+    if (version == 1) return 0;
+    int s = Arrays.binarySearch(ids, (int)(pt >>> 40));
+    if (s < 0) throw new Exception("Unknown segment "+(pt >>> 40));
+    return s;
+  }
+  // the file channel of data pointer pt
+  private FileChannel channel(long pt) throws Exception {
+    return version == 1? raf.getChannel():segs[segment(pt)].getChannel();
+  }
+  // the data pointer of key, -1 if key is not in this file (or it's closed)
+  private long pointer(String key) {
+    if (!enter()) return -1;
+    try {
+      if (index == null) {
+        int e = dir.find(key);
+        return e < 0? -1:dir.pointer(e);
+      }
+      int e = index.find(key);
+      return e < 0? -1:index.pointer(e);
+    } finally {
+      exit();
+    }
+  }
+  // the data size of key (top bit: encoded), -1 if key is not in this file (or it's closed)
+  private int size(String key) {
+    if (!enter()) return -1;
+    try {
+      if (index == null) {
+        int e = dir.find(key);
+        return e < 0? -1:dir.size(e);
+      }
+      int e = index.find(key);
+      return e < 0? -1:index.size(e);
+    } finally {
+      exit();
+    }
+  }
+  // release the mapping of bb now (Unsafe.invokeCleaner()). Otherwise it's released by GC
+  private static void unmap(ByteBuffer bb) {
+    if (cleaner != null) try {
+      cleaner.invoke(unsafe, bb);
+    } catch (Exception ex) { }
+  }
+  // positional read of buf.length bytes at pt through the direct buffer of this thread
+  private void read(FileChannel fc, long pt, byte[] buf) throws Exception {
+    ByteBuffer bb = buffers.get();
+    for (int n = 0, l; n < buf.length; n += l) {
+      l = Math.min(bb.capacity(), buf.length - n);
+      bb.clear().limit(l);
+      while (bb.hasRemaining()) if (fc.read(bb, pt + n + bb.position()) < 0) throw new EOFException(fName);
+      bb.flip();
+      bb.get(buf, n, l);
+    }
+  }
+  // map the format 1 file in chunks. Fall back to RandomAccessFile if mapping is unavailable
+  private void map() {
+    try {
+      FileChannel fc = raf.getChannel();
+      long len = fc.size();
+      if (len == 0) return;
+      MappedByteBuffer[] mbs = new MappedByteBuffer[(int)((len + CHUNK - 1) / CHUNK)];
+      for (int i = 0; i < mbs.length; ++i) {
+        long p = (long)i * CHUNK;
+        mbs[i] = fc.map(FileChannel.MapMode.READ_ONLY, p, Math.min(CHUNK, len - p));
+      }
+      chunks = mbs;
+    } catch (Exception ex) { // e.g. out of address space
+      chunks = null;
+    }
+  }
+  // append count bytes of src at position to dst
+  private void transfer(FileChannel src, long position, long count, FileChannel dst) throws Exception {
+    for (long n = 0; n < count; ) n += src.transferTo(position+n, count-n, dst.position(dst.size()));
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int MAGIC = 0x4E444232, STEP = 0x10000; // "NDB2", entries per parsed chunk
+  private static final char SEPARATOR = '#'; // of NanoDB name and segment id
+  private static final long CHUNK = 0x40000000L, OFFSET = 0xFFFFFFFFFFL; // 1 GB, 40 bits
+  private static Object unsafe;
+  private static java.lang.reflect.Method cleaner;
+  static {
+    try { // sun.misc.Unsafe of jdk.unsupported: a mapping has no public unmap
+      Class<?> c = Class.forName("sun.misc.Unsafe");
+      java.lang.reflect.Field f = c.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      unsafe = f.get(null);
+      cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Exception ex) { }
+  }
+  private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(65536));
+  private volatile MappedByteBuffer[] chunks;
+  private Set<String> staled = ConcurrentHashMap.newKeySet();
+  private AtomicLong garbage = new AtomicLong();
+  private RandomAccessFile[] segs = new RandomAccessFile[0];
+  private int[] ids = new int[0], retired = new int[0];
+  private int version = 2, stamp, pins;
+  private volatile boolean closed;
+  private boolean replaced;
+  private final AtomicInteger readers = new AtomicInteger();
+  private NanoIndex index;
+  private NanoKeys dir;
+  private RandomAccessFile raf;
+  private FileLock fLocked;
+  private boolean mapped;
+  private long segSize;
+  private String fName;
+  private Charset cs;
+}
@@ -0,0 +1,231 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+/**
+NanoFrame, a complete message (request or reply) of the NanoDB wire protocol and its framing.
+<br>- Frame: frame length, version, flags, opcode, request id, payload = 4+1+1+1+4+n bytes
+<br>- A message is sent as one frame or (larger than the chunk size, see NanoFrameChannel) as a sequence of
+<br>  frames with the same request id: all but the last one are flagged MORE. The payload of the message
+<br>  is the concatenation of the payloads (a request: cmd, lengths, dbName, key, data. A reply: status, data).
+<br>- Decoder: incremental, any split of the received bytes. Input: a reply as InputStream, frame by frame.
+<br>- The read buffers are pooled (direct, chunk size): they are borrowed only for the received bytes.
+<br>- A decoded message grows with its received bytes up to a max. message size: a declared length is never allocated.
+@author Joe T. Schwarz (c)
+*/
+class NanoFrame {
+  /**
+  constructor
+  @param id int, request id
+  @param opcode int, cmd of the request
+  @param data byte array, payload of the message
+  */
+  NanoFrame(int id, int opcode, byte[] data) {
+    this.id = id;
+    this.opcode = opcode;
+    this.data = data;
+  }
+  /**
+  put a frame header into hdr
+  @param hdr ByteBuffer of min. HEADER bytes, flipped on return
+  @param length int, payload length of the frame
+  @param flags int, e.g. MORE
+  @param opcode int
+  @param id int, request id
+  @return hdr
+  */
+  static ByteBuffer header(ByteBuffer hdr, int length, int flags, int opcode, int id) {
+    hdr.clear();
+    return hdr.putInt(length).put((byte)VERSION).put((byte)flags).put((byte)opcode).putInt(id).flip();
+  }
+  /**
+  borrow a read buffer
+  @param size int, capacity. Pooled if CHUNK
+  @return ByteBuffer, cleared
+  */
+  static ByteBuffer borrow(int size) {
+    ByteBuffer bb = size == CHUNK? pool.poll():null;
+    if (bb == null) return ByteBuffer.allocateDirect(size);
+    pooled.decrementAndGet();
+    return bb.clear();
+  }
+  /**
+  return a borrowed buffer to the pool
+  @param bb ByteBuffer
+  */
+  static void recycle(ByteBuffer bb) {
+    if (bb.capacity() != CHUNK) return;
+    if (pooled.incrementAndGet() <= POOL) pool.offer(bb);
+    else pooled.decrementAndGet();
+  }
+  /**
+  Decoder, the incremental decoder of the received frames into messages (NanoFrame)
+  */
+  static class Decoder {
+    /**
+    constructor
+    @param sizer function of the first bytes of a message (position: count) to its length, -1 if unknown.
+    <br>A message of another length is rejected (e.g. NanoDBWorker.length()). null: not checked.
+    @param max int, max. message size (bytes). A larger message is rejected
+    */
+    Decoder(ToLongFunction<ByteBuffer> sizer, int max) {
+      this.sizer = sizer;
+      this.max = max;
+    }
+    /**
+    decode the received bytes in src
+    @param src ByteBuffer, flipped. Consumed up to the end of the next complete message
+    @return NanoFrame, the next complete message, null if src is consumed (the rest is kept)
+    @exception IOException if the frames are corrupted (e.g. other version) or the message is too large
+    */
+    NanoFrame next(ByteBuffer src) throws IOException {
+      while (true) {
+        if (left < 0) { // frame header
+          if (!src.hasRemaining()) return null;
+          while (hdr.hasRemaining() && src.hasRemaining()) hdr.put(src.get());
+          if (hdr.hasRemaining()) return null;
+          hdr.flip();
+          int len = hdr.getInt(), version = hdr.get(), flags = hdr.get(), op = hdr.get() & 0xFF, fid = hdr.getInt();
+          hdr.clear();
+          if (version != VERSION) throw new IOException("Unsupported frame version "+version);
+          if (len < 0 || len > MAX) throw new IOException("Invalid frame length "+len);
+          if (data == null) {
+            id = fid;
+            opcode = op;
+            data = new byte[Math.min(len, GROWTH)];
+            fill = 0;
+            total = -1;
+            first = true;
+          } else if (fid != id) throw new IOException("Interleaved frame "+fid+" in message "+id);
+          if ((long)fill + len > max) throw new IOException("Message "+id+" exceeds "+max+" bytes");
+          more = (flags & MORE) != 0;
+          left = len;
+        }
+        int n = Math.min(left, src.remaining());
+        if (fill + n > data.length) // grow with the received bytes, at most to the end of the frame
+          data = Arrays.copyOf(data, (int)Math.min(Math.max(fill + n, 2L * data.length), fill + left));
+        src.get(data, fill, n);
+        fill += n;
+        left -= n;
+        if (left > 0) return null;
+        left = -1;
+        if (first && sizer != null) { // the declared length of the message
+          total = sizer.applyAsLong(ByteBuffer.wrap(data).position(fill));
+          if (total > max) throw new IOException("Message "+id+" of "+total+" bytes exceeds "+max+" bytes");
+        }
+        first = false;
+        if (!more) {
+          if (total >= 0 && total != fill) throw new IOException("Message "+id+" of "+fill+" bytes, declared "+total);
+          NanoFrame f = new NanoFrame(id, opcode, fill == data.length? data:Arrays.copyOf(data, fill));
+          data = null;
+          return f;
+        }
+      }
+    }
+    private ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+    private ToLongFunction<ByteBuffer> sizer;
+    private int id, opcode, fill, max, left = -1;
+    private long total;
+    private boolean more, first;
+    private byte[] data;
+  }
+  /**
+  Input, the payload of one message read frame by frame from a channel in blocking mode
+  */
+  static class Input extends InputStream {
+    /**
+    constructor. The frame header of the message is read.
+    @param ch ReadableByteChannel in blocking mode
+    @param buf ByteBuffer, flipped, the received bytes (incl. the next messages): kept for the next Input
+    @exception IOException thrown by JAVA
+    */
+    Input(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
+      this.ch = ch;
+      this.buf = buf;
+      frame();
+    }
+    /**
+    @return int, request id of the message
+    */
+    int id() {
+      return id;
+    }
+    //
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1:b[0] & 0xFF;
+    }
+    //
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (left == 0) {
+        if (!more) return -1;
+        frame();
+      }
+      int n = Math.min(len, left);
+      if (!buf.hasRemaining() && n < buf.capacity() / 2) fill();
+      if (buf.hasRemaining()) buf.get(b, off, n = Math.min(n, buf.remaining()));
+      else if ((n = ch.read(ByteBuffer.wrap(b, off, n))) < 0) throw new EOFException(); // large: directly
+      left -= n;
+      return n;
+    }
+    //
+    public int available() {
+      return Math.min(left, buf.remaining());
+    }
+    /**
+    skip the unread rest of the message
+    */
+    public void close() throws IOException {
+      while (skip(Long.MAX_VALUE) > 0);
+    }
+    //
+    public long skip(long n) throws IOException {
+      long s = 0;
+      byte[] b = new byte[4096];
+      for (int r; s < n && (r = read(b, 0, (int)Math.min(b.length, n - s))) > 0; ) s += r;
+      return s;
+    }
+    // read the next frame header
+    private void frame() throws IOException {
+      while (buf.remaining() < HEADER) fill();
+      left = buf.getInt();
+      int version = buf.get(), flags = buf.get();
+      buf.get(); // opcode
+      int fid = buf.getInt();
+      if (version != VERSION) throw new IOException("Unsupported frame version "+version);
+      if (left < 0 || left > MAX) throw new IOException("Invalid frame length "+left);
+      if (started && fid != id) throw new IOException("Interleaved frame "+fid+" in message "+id);
+      more = (flags & MORE) != 0;
+      started = true;
+      id = fid;
+    }
+    // read more bytes into buf
+    private void fill() throws IOException {
+      buf.compact();
+      int n = ch.read(buf);
+      buf.flip();
+      if (n < 0) throw new EOFException();
+    }
+    private ReadableByteChannel ch;
+    private ByteBuffer buf;
+    private boolean more, started;
+    private int id, left;
+  }
+  //---------------------------------------------------------------------------------------
+  /**
+  version of the frame format, header size, flag of a non-last frame, default chunk size, max. frame length
+  */
+  static final int VERSION = 1, HEADER = 11, MORE = 0x01, CHUNK = 65536, MAX = 0x1000000;
+  private static final int POOL = 256, GROWTH = 65536; // max. pooled buffers, initial size of a decoded message
+  private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger pooled = new AtomicInteger();
+  //
+  final int id, opcode;
+  final byte[] data;
+}
@@ -0,0 +1,109 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+/**
+NanoFrameChannel, the framing writer of a message (see NanoFrame): begin(), writes, end().
+<br>- Small writes are staged in a pooled buffer and sent with the last frame: a small message is one frame.
+<br>- Data larger than the staging room is sent as MORE frames of max. chunk bytes by gathering writes
+<br>  of header, staged bytes and a slice of the data (no copy). File data is sent by FileChannel.transferTo().
+<br>  Neither side buffers a multi-MB value as a whole for the transport.
+@author Joe T. Schwarz (c)
+*/
+class NanoFrameChannel implements GatheringByteChannel {
+  /**
+  constructor
+  @param ch GatheringByteChannel, e.g. a SocketChannel in blocking mode or a NanoDBChannel
+  @param chunk int, max. payload of a frame (min. 1 KB, max. 16 MB)
+  */
+  NanoFrameChannel(GatheringByteChannel ch, int chunk) {
+    this.ch = ch;
+    this.chunk = Math.max(1024, Math.min(chunk, NanoFrame.MAX));
+  }
+  /**
+  begin a message
+  @param id int, request id
+  @param opcode int, cmd of the request
+  */
+  void begin(int id, int opcode) {
+    this.id = id;
+    this.opcode = opcode;
+    if (stage == null) stage = NanoFrame.borrow(chunk);
+  }
+  /**
+  end the message: send the staged bytes as its last frame
+  @exception IOException thrown by JAVA
+  */
+  void end() throws IOException {
+    try {
+      frame(0, EMPTY, 0);
+    } finally {
+      NanoFrame.recycle(stage);
+      stage = null;
+    }
+  }
+  //
+  public int write(ByteBuffer src) throws IOException {
+    int n = src.remaining();
+    while (src.hasRemaining()) {
+      if (src.remaining() <= stage.remaining()) stage.put(src);
+      else { // a MORE frame of the staged bytes and a slice of src
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + Math.min(src.remaining(), stage.remaining()));
+        src.position(slice.limit());
+        frame(NanoFrame.MORE, slice, 0);
+      }
+    }
+    return n;
+  }
+  //
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    long n = 0;
+    for (int i = offset; i < offset + length; ++i) n += write(srcs[i]);
+    return n;
+  }
+  //
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+  /**
+  transfer count bytes of src at position as MORE frames (FileChannel.transferTo(): no copy on the JAVA heap)
+  @param src FileChannel
+  @param position long
+  @param count long
+  @return long, count
+  @exception IOException thrown by JAVA
+  */
+  long transferFrom(FileChannel src, long position, long count) throws IOException {
+    for (long n = 0; n < count; ) {
+      int len = (int)Math.min(count - n, stage.remaining());
+      frame(NanoFrame.MORE, EMPTY, len); // header and staged bytes, then len bytes of src
+      if (ch instanceof NanoDBChannel) ((NanoDBChannel)ch).transferFrom(src, position + n, len);
+      else for (long t = 0; t < len; ) t += src.transferTo(position + n + t, len - t, ch);
+      n += len;
+    }
+    return count;
+  }
+  //
+  public boolean isOpen() {
+    return ch.isOpen();
+  }
+  //
+  public void close() throws IOException {
+    ch.close();
+  }
+  // send header, staged bytes and data of a frame with extra bytes to follow
+  private void frame(int flags, ByteBuffer data, int extra) throws IOException {
+    stage.flip();
+    int len = stage.remaining() + data.remaining();
+    ByteBuffer[] bbs = { NanoFrame.header(hdr, len + extra, flags, opcode, id), stage, data };
+    for (long n = NanoFrame.HEADER + len; n > 0; ) n -= ch.write(bbs);
+    stage.clear();
+  }
+  //---------------------------------------------------------------------------------------
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  private ByteBuffer hdr = ByteBuffer.allocate(NanoFrame.HEADER), stage;
+  private GatheringByteChannel ch;
+  private int chunk, id, opcode;
+}
@@ -0,0 +1,202 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+/**
+NanoIndex, the persistent key index fName_idx of a NanoFile. It's memory-mapped and queried lazily:
+<br>open() neither reads the key block nor builds any key map, its time doesn't grow with the number of keys.
+<br>- Header: magic, number of keys, number of slots, manifest stamp, manifest length and time,
+<br>  position of the order = 4+4+4+4+8+8+4 bytes
+<br>- Slots: open addressing hash table of key hash and entry offset (0: empty) = 4+4 bytes per slot
+<br>- Entries in file order: data pointer, data size, key length, key itself = 8+4+2+k bytes
+<br>- Order: the entry offsets in key order = 4 bytes per key. The ordered scans read it from the mapping:
+<br>  they don't sort (or hold) the keys on the JAVA heap.
+<br>The index is valid only for the manifest of the same length, time and stamp. Otherwise it's rebuilt.
+@author Joe T. Schwarz (c)
+*/
+class NanoIndex {
+  /**
+  open and map the index file
+  @param iName String, index file name
+  @param cs Charset of the keys
+  @param length long, length of the manifest
+  @param time long, last modified time of the manifest
+  @param stamp int, stamp (generation) of the manifest
+  @return NanoIndex, null if the index is missing, not valid for the manifest or cannot be mapped
+  */
+  static NanoIndex open(String iName, Charset cs, long length, long time, int stamp) {
+    File f = new File(iName);
+    if (!f.exists() || f.length() < HEADER || f.length() > Integer.MAX_VALUE) return null;
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+      MappedByteBuffer mbb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (mbb.getInt(0) != MAGIC || mbb.getInt(12) != stamp ||
+          mbb.getLong(16) != length || mbb.getLong(24) != time) return null;
+      return new NanoIndex(mbb, cs);
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+  /**
+  write the index file of a manifest
+  @param iName String, index file name
+  @param dir NanoKeys, the keys, data pointers and data sizes in file order
+  @param length long, length of the manifest
+  @param time long, last modified time of the manifest
+  @param stamp int, stamp (generation) of the manifest
+  @exception Exception thrown by JAVA
+  */
+  static void write(String iName, NanoKeys dir, long length, long time, int stamp) throws Exception {
+    int count = dir.count(), slots = Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1; // load factor <= 0.5
+    int[] table = new int[2*slots], offs = new int[count];
+    long base = HEADER + 8L * slots, off = 1;
+    try (RandomAccessFile raf = new RandomAccessFile(iName, "rw")) {
+      raf.setLength(0);
+      FileChannel fc = raf.getChannel();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc.position(base)), 65536));
+      for (int i = 0; i < count; ++i) {
+        byte[] kb = dir.bytes(i);
+        int dl = dir.size(i);
+        int h = hash(kb), s = h & (slots - 1);
+        while (table[2*s+1] != 0) s = (s + 1) & (slots - 1);
+        if (base + off + 14 + kb.length > Integer.MAX_VALUE) throw new Exception("Index too large");
+        table[2*s] = h;
+        table[2*s+1] = (int)off;
+        offs[i] = (int)off;
+        out.writeLong(dir.pointer(i));
+        out.writeInt(dl);
+        out.writeShort(kb.length);
+        out.write(kb);
+        off += 14 + kb.length;
+      }
+      if (base + off + 4L * count > Integer.MAX_VALUE) throw new Exception("Index too large");
+      for (int e : dir.order()) out.writeInt(offs[e]);
+      out.flush();
+      // header and slots
+      ByteBuffer bb = ByteBuffer.allocate(65536);
+      bb.putInt(MAGIC).putInt(count).putInt(slots).putInt(stamp).putLong(length).putLong(time);
+      bb.putInt((int)(base + off - 1));
+      long pos = 0;
+      for (int i = 0; i <= table.length; ++i) {
+        if (!bb.hasRemaining() || i == table.length) {
+          bb.flip();
+          while (bb.hasRemaining()) pos += fc.write(bb, pos);
+          bb.clear();
+        }
+        if (i < table.length) bb.putInt(table[i]);
+      }
+      raf.getFD().sync();
+    }
+  }
+  /**
+  find the entry of key
+  @param key String
+  @return int, the entry of key, -1 if key is not in index
+  */
+  int find(String key) {
+    byte[] kb = key.getBytes(cs);
+    int h = hash(kb);
+    for (int s = h & (slots - 1); ; s = (s + 1) & (slots - 1)) {
+      int off = mbb.getInt(HEADER + 8*s + 4);
+      if (off == 0) return -1;
+      if (mbb.getInt(HEADER + 8*s) != h) continue;
+      int e = base + off - 1;
+      if (equals(e, kb)) return e;
+    }
+  }
+  /**
+  @param e int, the entry (see find())
+  @return long, the data pointer of entry
+  */
+  long pointer(int e) {
+    return mbb.getLong(e);
+  }
+  /**
+  @param e int, the entry (see find())
+  @return int, the data size of entry (top bit: encoded record)
+  */
+  int size(int e) {
+    return mbb.getInt(e + 8);
+  }
+  /**
+  the keys in key order from fromKey (inclusive), decoded from the entries one by one
+  @param fromKey String, null: from the first key
+  @return Iterator of the keys
+  */
+  Iterator<String> keys(String fromKey) {
+    int lo = 0;
+    if (fromKey != null) for (int hi = count; lo < hi; ) { // the first key >= fromKey
+      int m = (lo + hi) >>> 1;
+      if (key(m).compareTo(fromKey) < 0) lo = m + 1;
+      else hi = m;
+    }
+    int first = lo;
+    return new Iterator<String>() {
+      public boolean hasNext() {
+        return r < count;
+      }
+      public String next() {
+        if (r >= count) throw new NoSuchElementException();
+        return key(r++);
+      }
+      private int r = first;
+    };
+  }
+  /**
+  @return MappedByteBuffer of the index file
+  */
+  MappedByteBuffer buffer() {
+    return mbb;
+  }
+  /**
+  @return String array of all keys in file order (decoded from the entries)
+  */
+  String[] keys() {
+    String[] keys = new String[count];
+    ByteBuffer bb = mbb.duplicate();
+    bb.position(base);
+    byte[] kb = new byte[256];
+    for (int i = 0; i < count; ++i) {
+      bb.position(bb.position() + 12);
+      int kl = bb.getShort() & 0xFFFF;
+      if (kl > kb.length) kb = new byte[kl];
+      bb.get(kb, 0, kl);
+      keys[i] = new String(kb, 0, kl, cs);
+    }
+    return keys;
+  }
+  //
+  private NanoIndex(MappedByteBuffer mbb, Charset cs) {
+    this.mbb = mbb;
+    this.cs = cs;
+    count = mbb.getInt(4);
+    slots = mbb.getInt(8);
+    base = HEADER + 8*slots;
+    order = mbb.getInt(32);
+  }
+  // the key of rank r in key order
+  private String key(int r) {
+    int e = base + mbb.getInt(order + 4*r) - 1, kl = mbb.getShort(e + 12) & 0xFFFF;
+    byte[] kb = new byte[kl];
+    mbb.get(e + 14, kb);
+    return new String(kb, cs);
+  }
+  // compare the key of entry e with kb
+  private boolean equals(int e, byte[] kb) {
+    if ((mbb.getShort(e + 12) & 0xFFFF) != kb.length) return false;
+    for (int i = 0, p = e + 14; i < kb.length; ++i, ++p) if (mbb.get(p) != kb[i]) return false;
+    return true;
+  }
+  // hash of the key bytes (never 0)
+  private static int hash(byte[] kb) {
+    int h = Arrays.hashCode(kb) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) | 1;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int MAGIC = 0x4E494432, HEADER = 36; // "NID2"
+  private MappedByteBuffer mbb;
+  private int count, slots, base, order;
+  private Charset cs;
+}
@@ -0,0 +1,214 @@
+package nanodb;
+//
+import java.util.*;
+import java.nio.charset.Charset;
+/**
+NanoKeys, the key directory of a NanoFile without NanoIndex: open addressing by the key bytes.
+<br>- The entries are kept in file order in parallel arrays: data pointer (long[]), data size (int[]),
+<br>  key position (int[]) in one byte array of all keys. No String, no boxed Long or Integer per key.
+<br>- The directory is built once (key block or merge) and then only read: the readers are not locked.
+<br>- A large key block is parsed in parallel into partial directories which are appended by addAll().
+<br>- The key order (entries sorted by key) is built by the first ordered scan or by NanoIndex.write().
+@author Joe T. Schwarz (c)
+*/
+class NanoKeys {
+  /**
+  constructor
+  @param cs Charset of the keys
+  @param capacity int, expected number of keys. Max. INITIAL keys are allocated at once, more are grown
+  */
+  NanoKeys(Charset cs, int capacity) {
+    this.cs = cs;
+    capacity = Math.max(16, Math.min(capacity, INITIAL));
+    pointers = new long[capacity];
+    sizes = new int[capacity];
+    positions = new int[capacity+1];
+    bytes = new byte[(int)Math.min(16L * capacity, MAX)];
+    resize(Integer.highestOneBit(capacity * 2 - 1) << 1);
+  }
+  /**
+  add a key (in file order). An existing key is not checked.
+  @param kb byte array of the key
+  @param off int, offset of the key in kb
+  @param kl int, key length
+  @param pt long, data pointer
+  @param dl int, data size
+  */
+  void add(byte[] kb, int off, int kl, long pt, int dl) {
+    if (count == pointers.length) {
+      int n = grow(count, count + 1);
+      pointers = Arrays.copyOf(pointers, n);
+      sizes = Arrays.copyOf(sizes, n);
+      positions = Arrays.copyOf(positions, n+1);
+    }
+    int p = positions[count];
+    if (p + kl > bytes.length) bytes = Arrays.copyOf(bytes, grow(bytes.length, (long)p + kl));
+    System.arraycopy(kb, off, bytes, p, kl);
+    positions[count+1] = p + kl;
+    pointers[count] = pt;
+    sizes[count] = dl;
+    if (2 * (count + 1) > slots.length) resize(2 * slots.length);
+    insert(count, hash(kb, off, kl));
+    ++count;
+  }
+  /**
+  add all entries of part (in file order) behind the entries of this directory.
+  <br>The key hashes of part are reused, the keys are not hashed again.
+  @param part NanoKeys, e.g. parsed in parallel from a chunk of the key block
+  */
+  void addAll(NanoKeys part) {
+    int n = count + part.count;
+    if (n > pointers.length) {
+      pointers = Arrays.copyOf(pointers, n);
+      sizes = Arrays.copyOf(sizes, n);
+      positions = Arrays.copyOf(positions, n+1);
+    }
+    int p = positions[count], kl = part.positions[part.count];
+    if (p + kl > bytes.length) bytes = Arrays.copyOf(bytes, grow(bytes.length, (long)p + kl));
+    System.arraycopy(part.bytes, 0, bytes, p, kl);
+    System.arraycopy(part.pointers, 0, pointers, count, part.count);
+    System.arraycopy(part.sizes, 0, sizes, count, part.count);
+    for (int e = 1; e <= part.count; ++e) positions[count+e] = p + part.positions[e];
+    if (2 * n > slots.length) resize(Integer.highestOneBit(2 * n - 1) << 1);
+    for (int s = 0; s < part.slots.length; ++s) if (part.slots[s] != 0) insert(count + part.slots[s] - 1, part.hashes[s]);
+    count = n;
+  }
+  /**
+  find the entry of key
+  @param key String
+  @return int, the entry of key, -1 if key is unknown
+  */
+  int find(String key) {
+    byte[] kb = key.getBytes(cs);
+    int h = hash(kb, 0, kb.length), mask = slots.length - 1;
+    for (int s = h & mask; ; s = (s + 1) & mask) {
+      int e = slots[s] - 1;
+      if (e < 0) return -1;
+      if (hashes[s] == h && equals(e, kb)) return e;
+    }
+  }
+  /**
+  @param e int, the entry (see find())
+  @return long, the data pointer of entry
+  */
+  long pointer(int e) {
+    return pointers[e];
+  }
+  /**
+  @param e int, the entry (see find())
+  @return int, the data size of entry
+  */
+  int size(int e) {
+    return sizes[e];
+  }
+  /**
+  @param e int, the entry
+  @return String, the key of entry
+  */
+  String key(int e) {
+    return new String(bytes, positions[e], positions[e+1] - positions[e], cs);
+  }
+  /**
+  @param e int, the entry
+  @return byte array of the key of entry
+  */
+  byte[] bytes(int e) {
+    return Arrays.copyOfRange(bytes, positions[e], positions[e+1]);
+  }
+  /**
+  @return int, number of keys
+  */
+  int count() {
+    return count;
+  }
+  /**
+  @return int array of the entries in key order (built once)
+  */
+  int[] order() {
+    int[] o = order;
+    if (o != null && o.length == count) return o;
+    String[] ks = keys();
+    Integer[] es = new Integer[count];
+    for (int e = 0; e < count; ++e) es[e] = e;
+    Arrays.parallelSort(es, (a, b) -> ks[a].compareTo(ks[b]));
+    o = new int[count];
+    for (int r = 0; r < count; ++r) o[r] = es[r];
+    return order = o;
+  }
+  /**
+  the keys in key order from fromKey (inclusive)
+  @param fromKey String, null: from the first key
+  @return Iterator of the keys
+  */
+  Iterator<String> keys(String fromKey) {
+    int[] o = order();
+    int lo = 0;
+    if (fromKey != null) for (int hi = o.length; lo < hi; ) { // the first key >= fromKey
+      int m = (lo + hi) >>> 1;
+      if (key(o[m]).compareTo(fromKey) < 0) lo = m + 1;
+      else hi = m;
+    }
+    int first = lo;
+    return new Iterator<String>() {
+      public boolean hasNext() {
+        return r < o.length;
+      }
+      public String next() {
+        if (r >= o.length) throw new NoSuchElementException();
+        return key(o[r++]);
+      }
+      private int r = first;
+    };
+  }
+  /**
+  @return String array of all keys in file order
+  */
+  String[] keys() {
+    String[] keys = new String[count];
+    for (int e = 0; e < count; ++e) keys[e] = key(e);
+    return keys;
+  }
+  /**
+  @return long, the heap bytes of this directory (arrays)
+  */
+  long footprint() {
+    return 8L * pointers.length + 4L * (sizes.length + positions.length + 2 * slots.length) + bytes.length;
+  }
+  // the grown length of an array: 1.5 times, at least min, max. MAX
+  private static int grow(int length, long min) {
+    if (min > MAX) throw new OutOfMemoryError("Key directory exceeds "+MAX+" bytes or keys");
+    return (int)Math.min(MAX, Math.max(min, length + (length >> 1)));
+  }
+  //
+  private void resize(int n) {
+    slots = new int[n];
+    hashes = new int[n];
+    for (int e = 0; e < count; ++e) insert(e, hash(bytes, positions[e], positions[e+1] - positions[e]));
+  }
+  private void insert(int e, int h) {
+    int mask = slots.length - 1, s = h & mask;
+    while (slots[s] != 0) s = (s + 1) & mask;
+    slots[s] = e + 1;
+    hashes[s] = h;
+  }
+  private boolean equals(int e, byte[] kb) {
+    int p = positions[e];
+    if (positions[e+1] - p != kb.length) return false;
+    for (int i = 0; i < kb.length; ++i) if (bytes[p+i] != kb[i]) return false;
+    return true;
+  }
+  private static int hash(byte[] kb, int off, int kl) {
+    int h = 1;
+    for (int i = off, end = off + kl; i < end; ++i) h = 31 * h + kb[i];
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int INITIAL = 0x100000, MAX = Integer.MAX_VALUE - 8; // keys allocated at once, max. array length
+  private int[] slots, hashes, sizes, positions;
+  private volatile int[] order;
+  private long[] pointers;
+  private byte[] bytes;
+  private int count;
+  private Charset cs;
+}
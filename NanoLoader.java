@@ -0,0 +1,72 @@
+package nanodb;
+//
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+/**
+NanoLoader, the record source of NanoDB.bulkLoad().
+<br>- The entries are pulled in batches. The values of a batch are serialized (if not byte arrays) and
+<br>  encoded by the codec on all cores, then they are handed out in the original order.
+@author Joe T. Schwarz (c)
+*/
+class NanoLoader implements Iterator<Map.Entry<String, byte[]>> {
+  /**
+  constructor
+  @param source Iterator of key and value (byte array or serializable object)
+  @param codec NanoCodec, null: no compression
+  @param threshold int, min. record size for compression
+  */
+  NanoLoader(Iterator<? extends Map.Entry<String, ?>> source, NanoCodec codec, int threshold) {
+    this.source = source;
+    this.codec = codec;
+    this.threshold = threshold;
+  }
+  /**
+  @return boolean true if there's a next record
+  */
+  public boolean hasNext() {
+    if (pos < count) return true;
+    count = pos = 0;
+    while (count < BATCH && source.hasNext()) {
+      Map.Entry<String, ?> e = source.next();
+      keys[count] = e.getKey();
+      values[count++] = e.getValue();
+    }
+    IntStream.range(0, count).parallel().forEach(i -> bufs[i] = record(values[i]));
+    Arrays.fill(values, null);
+    return count > 0;
+  }
+  /**
+  @return the next key and record (encoded if codec is set)
+  */
+  public Map.Entry<String, byte[]> next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    Map.Entry<String, byte[]> e = new AbstractMap.SimpleImmutableEntry<>(keys[pos], bufs[pos]);
+    keys[pos] = null;
+    bufs[pos++] = null;
+    return e;
+  }
+  // serialize and encode value
+  private byte[] record(Object value) {
+    byte[] buf;
+    if (value instanceof byte[]) buf = (byte[])value;
+    else try {
+      ByteArrayOutputStream bao = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bao);
+      oos.writeObject(value);
+      oos.close();
+      buf = bao.toByteArray();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return codec != null? NanoCodecs.encode(buf, codec, threshold):buf;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int BATCH = 4096;
+  private Iterator<? extends Map.Entry<String, ?>> source;
+  private String[] keys = new String[BATCH];
+  private Object[] values = new Object[BATCH];
+  private byte[][] bufs = new byte[BATCH][];
+  private NanoCodec codec;
+  private int count, pos, threshold;
+}
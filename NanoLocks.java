@@ -0,0 +1,223 @@
+package nanodb;
+//
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+/**
+NanoLocks, the key lock table of a NanoDB.
+<br>- Key to owner (userID) in a ConcurrentHashMap: the table is locked per hash bin (striped), not as a whole.
+<br>- lock() is one atomic putIfAbsent, unlock() one conditional remove: O(1), no check-then-act.
+<br>- The locked keys of each owner are kept in a concurrent set: releaseAll() visits only the keys of the owner.
+<br>- lock(userID, key, timeout) parks the caller in the FIFO wait queue of key. A released key is handed over
+<br>  to the head of its queue. A key with waiters is not taken by lock() without timeout (no barging).
+<br>- lock(userID, key, timeout, done) queues a waiter without a thread: done is called when the key is granted
+<br>  or (by a shared timer) when the timeout is over. A server replies to a waiting lock request without a thread.
+@author Joe T. Schwarz (c)
+*/
+class NanoLocks {
+  /**
+  lock key for userID. A key locked by userID is locked again (true).
+  @param userID String
+  @param key String
+  @return boolean true if key is locked by userID, false if key is locked by other user
+  */
+  boolean lock(String userID, String key) {
+    if (!waiters.isEmpty() && waiters.containsKey(key)) return isOwner(userID, key);
+    String owner = owners.putIfAbsent(key, userID);
+    if (owner != null) return owner.equals(userID);
+    keys.computeIfAbsent(userID, u -> ConcurrentHashMap.newKeySet()).add(key);
+    return true;
+  }
+  /**
+  lock key for userID, wait max. timeout milliseconds in the wait queue of key if it's locked by other user
+  @param userID String
+  @param key String
+  @param timeout long, max. waiting time in milliseconds (0: don't wait)
+  @return boolean true if key is locked by userID, false if timed out, interrupted or cleared
+  */
+  boolean lock(String userID, String key, long timeout) {
+    if (lock(userID, key)) return true;
+    if (timeout <= 0) return false;
+    Waiter w = new Waiter(userID);
+    waiters.compute(key, (k, q) -> {
+      if (q == null) q = new ArrayDeque<>();
+      q.add(w);
+      return q;
+    });
+    grant(key); // released meanwhile?
+    long end = System.nanoTime() + timeout * 1000000L;
+    for (long nanos = timeout * 1000000L; w.state == 0 && nanos > 0 && !w.thread.isInterrupted();
+         nanos = end - System.nanoTime()) LockSupport.parkNanos(this, nanos);
+    waiters.computeIfPresent(key, (k, q) -> {
+      if (w.state == 0) { // timed out: leave the queue
+        w.state = -1;
+        q.remove(w);
+      }
+      return q.isEmpty()? null:q;
+    });
+    return w.state > 0;
+  }
+  /**
+  lock key for userID without waiting: done is called with true when key is locked by userID (e.g. now),
+  <br>with false if the timeout is over or the locks are cleared. done must not block (it's called by unlock()).
+  @param userID String
+  @param key String
+  @param timeout long, max. waiting time in milliseconds (0: don't wait)
+  @param done Consumer of the result
+  */
+  void lock(String userID, String key, long timeout, Consumer<Boolean> done) {
+    if (lock(userID, key)) done.accept(true);
+    else if (timeout <= 0) done.accept(false);
+    else {
+      Waiter w = new Waiter(userID, done);
+      waiters.compute(key, (k, q) -> {
+        if (q == null) q = new ArrayDeque<>();
+        q.add(w);
+        return q;
+      });
+      w.timeout = timer.schedule(() -> {
+        waiters.computeIfPresent(key, (k, q) -> {
+          if (w.state == 0) { // timed out: leave the queue
+            w.state = -1;
+            q.remove(w);
+          }
+          return q.isEmpty()? null:q;
+        });
+        if (w.state < 0) done.accept(false);
+      }, timeout, TimeUnit.MILLISECONDS);
+      grant(key); // released meanwhile?
+    }
+  }
+  /**
+  unlock a key locked by userID
+  @param userID String
+  @param key String
+  @return boolean true if key is unlocked, false if key is not locked by userID
+  */
+  boolean unlock(String userID, String key) {
+    if (!owners.remove(key, userID)) return false;
+    Set<String> set = keys.get(userID);
+    if (set != null) set.remove(key);
+    if (!waiters.isEmpty()) grant(key);
+    return true;
+  }
+  /**
+  @param key String
+  @return boolean true if key is locked
+  */
+  boolean isLocked(String key) {
+    return owners.containsKey(key);
+  }
+  /**
+  @param userID String
+  @param key String
+  @return boolean true if key is locked by userID
+  */
+  boolean isOwner(String userID, String key) {
+    return userID.equals(owners.get(key));
+  }
+  /**
+  @param userID String
+  @return Set of the keys locked by userID (live view, empty if none)
+  */
+  Set<String> keys(String userID) {
+    Set<String> set = keys.get(userID);
+    return set != null? set:Collections.emptySet();
+  }
+  /**
+  release all keys locked by userID and drop its waiting lock requests (they fail)
+  @param userID String
+  */
+  void releaseAll(String userID) {
+    List<Waiter> dropped = new ArrayList<>();
+    if (!waiters.isEmpty()) for (String key : waiters.keySet()) waiters.computeIfPresent(key, (k, q) -> {
+      for (Iterator<Waiter> it = q.iterator(); it.hasNext(); ) {
+        Waiter w = it.next();
+        if (w.state == 0 && w.userID.equals(userID)) {
+          w.state = -1;
+          it.remove();
+          dropped.add(w);
+        }
+      }
+      return q.isEmpty()? null:q;
+    });
+    Set<String> set = keys.remove(userID);
+    if (set != null) for (String key : set) if (owners.remove(key, userID) && !waiters.isEmpty()) grant(key);
+    for (Waiter w : dropped) w.wake();
+  }
+  /**
+  @return int, number of locked keys
+  */
+  int count() {
+    return owners.size();
+  }
+  /**
+  release all keys of all users
+  */
+  void clear() {
+    List<Waiter> cleared = new ArrayList<>();
+    for (String key : waiters.keySet()) waiters.computeIfPresent(key, (k, q) -> {
+      for (Waiter w : q) if (w.state == 0) {
+        w.state = -1;
+        cleared.add(w);
+      }
+      return null;
+    });
+    keys.clear();
+    owners.clear();
+    for (Waiter w : cleared) w.wake();
+  }
+  // hand the free key over to the head of its wait queue
+  private void grant(String key) {
+    Waiter[] granted = new Waiter[1];
+    waiters.computeIfPresent(key, (k, q) -> {
+      Waiter w = q.peek();
+      if (w != null && owners.putIfAbsent(key, w.userID) == null) {
+        q.poll();
+        keys.computeIfAbsent(w.userID, u -> ConcurrentHashMap.newKeySet()).add(key);
+        w.state = 1;
+        granted[0] = w;
+      }
+      return q.isEmpty()? null:q;
+    });
+    if (granted[0] != null) granted[0].wake();
+  }
+  // a parked lock(userID, key, timeout) or a queued done. state: 0 waiting, 1 granted, -1 timed out or cleared
+  private static class Waiter {
+    Waiter(String userID) {
+      this(userID, null);
+    }
+    Waiter(String userID, Consumer<Boolean> done) {
+      this.userID = userID;
+      this.done = done;
+      thread = done == null? Thread.currentThread():null;
+    }
+    // the state is set: unpark the thread or call done
+    void wake() {
+      if (thread != null) LockSupport.unpark(thread);
+      else {
+        ScheduledFuture<?> f = timeout;
+        if (f != null) f.cancel(false); // granted before it's scheduled: a no-op when it's due
+        done.accept(state > 0);
+      }
+    }
+    private final String userID;
+    private final Thread thread;
+    private final Consumer<Boolean> done;
+    private volatile ScheduledFuture<?> timeout;
+    private volatile int state;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread t = new Thread(r, "NanoLocks-timer");
+    t.setDaemon(true);
+    return t;
+  });
+  static {
+    timer.setRemoveOnCancelPolicy(true);
+  }
+  private ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>(256);
+  private ConcurrentHashMap<String, Set<String>> keys = new ConcurrentHashMap<>(64);
+  private ConcurrentHashMap<String, ArrayDeque<Waiter>> waiters = new ConcurrentHashMap<>(64);
+}
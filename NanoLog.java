@@ -0,0 +1,382 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+/**
+NanoLog, the append-only Write-Ahead-Log of a NanoDB file.
+<br>Each commit appends one record: record length + entries + CRC32 = 4+n+4 bytes
+<br>- The entry has 4 fields: key length, data length (-1: deleted), key itself, data = 2+4+k+d bytes
+<br>- The top bit of the data length flags an encoded record (see NanoCodecs)
+<br>- A record is replayed as a whole or not at all. A torn record at the end is cut off.
+<br>- Group commit: the records of concurrent commits are queued. The first waiting committer writes
+<br>  all queued records by one gathering write (and one fsync), the others wait for it.
+<br>- fsync policy: NEVER (the OS flushes), BATCH (once per written batch before the commits return)
+<br>  or INTERVAL (the written batches are synced periodically in the background).
+<br>- The committers wait on ReentrantLocks (not on monitors): a virtual thread waiting for the write or
+<br>  the fsync of the leader unmounts and doesn't pin its carrier thread.
+@author Joe T. Schwarz (c)
+*/
+public class NanoLog {
+  /**
+  constructor
+  @param fName  String, log file name
+  @param cs Charset of the keys
+  */
+  public NanoLog(String fName, Charset cs) {
+    this(fName, cs, false);
+  }
+  /**
+  constructor
+  @param fName  String, log file name
+  @param cs Charset of the keys
+  @param encoded boolean, true: the appended and the replayed data are encoded records (see NanoCodecs)
+  */
+  public NanoLog(String fName, Charset cs, boolean encoded) {
+    this.fName = fName;
+    this.encoded = encoded;
+    this.cs = cs;
+  }
+  /**
+  setSync (default: BATCH, a returned commit is on disk). Must be set before open().
+  @param policy int, NEVER, BATCH or INTERVAL
+  @param millis long, sync interval in milliseconds (INTERVAL only)
+  */
+  public void setSync(int policy, long millis) {
+    this.policy = policy;
+    this.millis = Math.max(1, millis);
+  }
+  /**
+  getSync
+  @return int, the fsync policy NEVER, BATCH or INTERVAL
+  */
+  public int getSync() {
+    return policy;
+  }
+  /**
+  open the log and replay all complete records.
+  @return HashMap of key and the last committed data (null if key was deleted)
+  @exception Exception thrown by JAVA
+  */
+  public HashMap<String, byte[]> open() throws Exception {
+    raf = new RandomAccessFile(fName, "rw");
+    HashMap<String, byte[]> map = new HashMap<>();
+    long len = raf.length(), pt = scan(0, len, map);
+    if (pt < len) raf.setLength(pt); // cut off the torn tail
+    raf.seek(pt);
+    if (policy == INTERVAL) syncer = timer.scheduleWithFixedDelay(() -> {
+      try {
+        sync();
+      } catch (Exception ex) { } // retried by the next run
+    }, millis, millis, TimeUnit.MILLISECONDS);
+    return map;
+  }
+  /**
+  read the records between from and to. Appending is not blocked.
+  @param from long, position of the first record
+  @param to long, end of the last record (e.g. a length())
+  @return HashMap of key and the last committed data (null if key was deleted)
+  @exception Exception thrown by JAVA
+  */
+  public HashMap<String, byte[]> read(long from, long to) throws Exception {
+    HashMap<String, byte[]> map = new HashMap<>();
+    scan(from, to, map);
+    return map;
+  }
+  /**
+  read all records. The log is not cut meanwhile.
+  @return HashMap of key and the last committed data (null if key was deleted)
+  @exception Exception thrown by JAVA
+  */
+  public HashMap<String, byte[]> read() throws Exception {
+    fLock.lock();
+    try {
+      return read(0, raf.length());
+    } finally {
+      fLock.unlock();
+    }
+  }
+  /**
+  append a committed change of a key as one record
+  @param key String
+  @param buf byte array of the committed data, null if key is deleted
+  @exception Exception thrown by JAVA
+  */
+  public void append(String key, byte[] buf) throws Exception {
+    append(new String[] { key }, new byte[][] { buf });
+  }
+  /**
+  append the committed changes of some keys as ONE record (all or nothing by replay).
+  <br>It returns when the record is written (BATCH: and synced) together with the concurrent commits.
+  @param keys String array
+  @param bufs array of byte arrays of the committed data, null element if key is deleted
+  @exception Exception thrown by JAVA
+  */
+  public void append(String[] keys, byte[][] bufs) throws Exception {
+    long t0 = System.nanoTime(), seq;
+    ByteBuffer rec = record(keys, bufs);
+    qLock.lock();
+    try {
+      queue.add(rec);
+      seq = ++queued;
+    } finally {
+      qLock.unlock();
+    }
+    while (true) {
+      qLock.lock();
+      try {
+        if (seq <= written) {
+          if (failure != null && seq >= failed) throw new Exception("Log write failed: "+failure);
+          break;
+        }
+        if (leading) { // the leader writes this record with its next batch
+          done.await();
+          continue;
+        }
+        leading = true;
+      } finally {
+        qLock.unlock();
+      }
+      flush();
+    }
+    long t = System.nanoTime() - t0;
+    commits.increment();
+    time.add(t);
+    if (t > maxTime) maxTime = t; // racy max is sufficient for tuning
+  }
+  /**
+  sync the written records to disk (INTERVAL: done periodically)
+  @exception Exception thrown by JAVA
+  */
+  public void sync() throws Exception {
+    fLock.lock();
+    try {
+      if (!dirty) return;
+      dirty = false;
+      raf.getChannel().force(false);
+      syncs.increment();
+    } finally {
+      fLock.unlock();
+    }
+  }
+  /**
+  @return long, number of the appended records (commits)
+  */
+  public long getCommits() {
+    return commits.sum();
+  }
+  /**
+  @return long, number of the written batches
+  */
+  public long getBatches() {
+    return batches.sum();
+  }
+  /**
+  @return double, average number of records per batch
+  */
+  public double getBatchSize() {
+    long b = batches.sum();
+    return b > 0? (double)commits.sum() / b:0;
+  }
+  /**
+  @return long, number of the fsyncs
+  */
+  public long getSyncs() {
+    return syncs.sum();
+  }
+  /**
+  @return long, average commit latency (queued, written and synced) in microseconds
+  */
+  public long getCommitTime() {
+    long c = commits.sum();
+    return c > 0? time.sum() / c / 1000:0;
+  }
+  /**
+  @return long, max. commit latency in microseconds
+  */
+  public long getMaxCommitTime() {
+    return maxTime / 1000;
+  }
+  // the leader writes all queued records as one batch
+  private void flush() {
+    ByteBuffer[] batch;
+    long last;
+    qLock.lock();
+    try {
+      batch = queue.toArray(new ByteBuffer[queue.size()]);
+      queue.clear();
+      last = queued;
+    } finally {
+      qLock.unlock();
+    }
+    Exception error = null;
+    if (failure == null) try { // a failed write may leave a torn record: the later records are lost
+      fLock.lock();
+      try {
+        FileChannel fc = raf.getChannel();
+        long n = 0;
+        for (ByteBuffer bb : batch) n += bb.remaining();
+        while (n > 0) n -= fc.write(batch);
+        dirty = true;
+        if (policy == BATCH) sync();
+      } finally {
+        fLock.unlock();
+      }
+      batches.increment();
+    } catch (Exception ex) {
+      error = ex;
+    }
+    qLock.lock();
+    try {
+      if (error != null) {
+        failed = last - batch.length + 1;
+        failure = error.toString();
+      }
+      written = last;
+      leading = false;
+      done.signalAll();
+    } finally {
+      qLock.unlock();
+    }
+  }
+  // the record of the changes: record length + entries + CRC32
+  private ByteBuffer record(String[] keys, byte[][] bufs) throws Exception {
+    ByteArrayOutputStream bao = new ByteArrayOutputStream(256);
+    bao.write(new byte[4]); // placeholder for record length
+    for (int i = 0; i < keys.length; ++i) {
+      byte[] kb = keys[i].getBytes(cs);
+      int kl = kb.length, dl = bufs[i] == null? -1:bufs[i].length | (encoded? NanoCodecs.FLAG:0);
+      bao.write(new byte[] { (byte)(kl >> 8), (byte) kl,
+                             (byte)(dl >> 24), (byte)(dl >> 16), (byte)(dl >> 8), (byte) dl
+                           }
+               );
+      bao.write(kb);
+      if (bufs[i] != null) bao.write(bufs[i]);
+    }
+    bao.write(new byte[4]); // placeholder for CRC32
+    byte[] rec = bao.toByteArray();
+    int rl = rec.length - 8;
+    CRC32 crc = new CRC32();
+    crc.update(rec, 4, rl);
+    return ByteBuffer.wrap(rec).putInt(0, rl).putInt(rl+4, (int)crc.getValue());
+  }
+  /**
+  length of the log
+  @return long, log size in bytes
+  @exception Exception thrown by JAVA
+  */
+  public long length() throws Exception {
+    fLock.lock();
+    try {
+      return raf.length();
+    } finally {
+      fLock.unlock();
+    }
+  }
+  /**
+  cut off the records before mark after they were merged into the NanoDB file.
+  <br>The records after mark are kept in a fresh log.
+  @param mark long, end of the merged records (a former length())
+  @exception Exception thrown by JAVA
+  */
+  public void cut(long mark) throws Exception {
+    fLock.lock();
+    try {
+      String tmp = fName+"_tmp";
+      try (RandomAccessFile rTmp = new RandomAccessFile(tmp, "rw")) {
+        rTmp.setLength(0);
+        FileChannel src = raf.getChannel(), dst = rTmp.getChannel();
+        for (long n = mark, len = raf.length(); n < len; ) n += src.transferTo(n, len-n, dst);
+        rTmp.getFD().sync();
+      }
+      raf.close();
+      Files.move(Paths.get(tmp), Paths.get(fName), StandardCopyOption.REPLACE_EXISTING,
+                                                  StandardCopyOption.ATOMIC_MOVE);
+      raf = new RandomAccessFile(fName, "rw");
+      raf.seek(raf.length());
+      dirty = false; // the kept records were synced
+    } finally {
+      fLock.unlock();
+    }
+  }
+  /**
+  sync and close the log
+  @exception Exception thrown by JAVA
+  */
+  public void close() throws Exception {
+    fLock.lock();
+    try {
+      if (syncer != null) syncer.cancel(false);
+      syncer = null;
+      raf.getFD().sync();
+      raf.close();
+    } finally {
+      fLock.unlock();
+    }
+  }
+  // scan the records between from and to into map. Return the end of the last complete record
+  private long scan(long from, long to, HashMap<String, byte[]> map) throws Exception {
+    FileChannel fc = raf.getChannel();
+    ByteBuffer hdr = ByteBuffer.allocate(4);
+    CRC32 crc = new CRC32();
+    long pt = from;
+    while (pt + 8 <= to) {
+      hdr.clear();
+      fc.read(hdr, pt);
+      int rl = hdr.getInt(0);
+      if (rl < 0 || pt + 8 + rl > to) break; // torn record
+      ByteBuffer bb = ByteBuffer.allocate(rl+4);
+      while (bb.hasRemaining() && fc.read(bb, pt+4+bb.position()) > 0);
+      byte[] rec = bb.array();
+      crc.reset();
+      crc.update(rec, 0, rl);
+      if (bb.getInt(rl) != (int)crc.getValue()) break; // corrupted record
+      bb.flip().limit(rl);
+      while (bb.hasRemaining()) {
+        int kl = bb.getShort() & 0xFFFF, dl = bb.getInt();
+        String key = new String(rec, bb.position(), kl, cs);
+        bb.position(bb.position()+kl);
+        if (dl == -1) map.put(key, null);
+        else {
+          byte[] buf = new byte[dl & ~NanoCodecs.FLAG];
+          bb.get(buf);
+          map.put(key, NanoCodecs.convert(buf, dl < 0, encoded));
+        }
+      }
+      pt += 8 + rl;
+    }
+    return pt;
+  }
+  //---------------------------------------------------------------------------------------
+  /**
+  fsync policy: never, per batch, periodically
+  */
+  public static final int NEVER = 0, BATCH = 1, INTERVAL = 2;
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "NanoLog");
+    t.setDaemon(true);
+    return t;
+  });
+  private LongAdder commits = new LongAdder(), batches = new LongAdder(), syncs = new LongAdder(), time = new LongAdder();
+  private ArrayList<ByteBuffer> queue = new ArrayList<>();
+  private final ReentrantLock qLock = new ReentrantLock(), fLock = new ReentrantLock(); // queue, file
+  private final Condition done = qLock.newCondition(); // batch written
+  private long queued, written, failed, millis = 1000;
+  private volatile long maxTime;
+  private volatile boolean dirty;
+  private ScheduledFuture<?> syncer;
+  private int policy = BATCH;
+  private boolean leading;
+  private volatile String failure;
+  private RandomAccessFile raf;
+  private boolean encoded;
+  private String fName;
+  private Charset cs;
+}
@@ -0,0 +1,150 @@
+package nanodb;
+//
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.charset.Charset;
+/**
+NanoSecondary, a secondary index of a NanoDB: index key (extracted from the record) to the keys.
+<br>- It holds the committed data: kept up to date by the commits (and auto-committed changes), not by rollbacks.
+<br>- It's persisted by close() in fName_ix_name and loaded if it's valid for the manifest and the log.
+<br>  Otherwise (e.g. after a crash) it's rebuilt from the records.
+<br>- File: magic, manifest stamp, manifest length, manifest time, log length, number of keys = 4+4+8+8+8+4 bytes,
+<br>  then per key: key length, index key length, key, index key = 2+4+k+v bytes
+@author Joe T. Schwarz (c)
+*/
+class NanoSecondary {
+  /**
+  constructor
+  @param name String, index name
+  @param extractor NanoExtractor
+  */
+  NanoSecondary(String name, NanoExtractor extractor) {
+    this.name = name;
+    this.extractor = extractor;
+  }
+  /**
+  index (or re-index) key
+  @param key String
+  @param data byte array of the record (decompressed)
+  */
+  void put(String key, byte[] data) {
+    String value;
+    try {
+      value = extractor.extract(data);
+    } catch (Exception ex) {
+      value = null; // not indexed
+    }
+    String old = value != null? values.put(key, value):values.remove(key);
+    if (old != null && !old.equals(value)) unlink(old, key);
+    if (value != null && !value.equals(old)) keys.compute(value, (v, set) -> {
+      if (set == null) set = ConcurrentHashMap.newKeySet();
+      set.add(key);
+      return set;
+    });
+  }
+  /**
+  remove key from index
+  @param key String
+  */
+  void remove(String key) {
+    String old = values.remove(key);
+    if (old != null) unlink(old, key);
+  }
+  /**
+  @param value String, index key
+  @return ArrayList of the keys with value in key order
+  */
+  ArrayList<String> find(String value) {
+    Set<String> set = keys.get(value);
+    ArrayList<String> list = set != null? new ArrayList<>(set):new ArrayList<>();
+    Collections.sort(list);
+    return list;
+  }
+  /**
+  @return String, index name
+  */
+  String name() {
+    return name;
+  }
+  /**
+  clear index
+  */
+  void clear() {
+    values.clear();
+    keys.clear();
+  }
+  /**
+  load the persisted index
+  @param iName String, index file name
+  @param cs Charset of the keys
+  @param stamp int, stamp of the manifest (see NanoFile.stamp())
+  @param length long, length of the manifest
+  @param time long, last modified time of the manifest
+  @param logLength long, length of the log
+  @return boolean true if loaded, false if missing or not valid (must be rebuilt)
+  */
+  boolean load(String iName, Charset cs, int stamp, long length, long time, long logLength) {
+    File f = new File(iName);
+    if (!f.exists()) return false;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536))) {
+      if (in.readInt() != MAGIC || in.readInt() != stamp || in.readLong() != length ||
+          in.readLong() != time || in.readLong() != logLength) return false;
+      byte[] kb = new byte[256], vb = new byte[256];
+      for (int n = in.readInt(); n > 0; --n) {
+        int kl = in.readShort() & 0xFFFF, vl = in.readInt();
+        if (kl > kb.length) kb = new byte[kl];
+        if (vl > vb.length) vb = new byte[vl];
+        in.readFully(kb, 0, kl);
+        in.readFully(vb, 0, vl);
+        String key = new String(kb, 0, kl, cs), value = new String(vb, 0, vl, cs);
+        values.put(key, value);
+        keys.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+      }
+      return true;
+    } catch (Exception ex) {
+      clear();
+      return false;
+    }
+  }
+  /**
+  save the index
+  @param iName String, index file name
+  @param cs Charset of the keys
+  @param stamp int, stamp of the manifest (see NanoFile.stamp())
+  @param length long, length of the manifest
+  @param time long, last modified time of the manifest
+  @param logLength long, length of the log
+  @exception Exception thrown by JAVA
+  */
+  void save(String iName, Charset cs, int stamp, long length, long time, long logLength) throws Exception {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(iName), 65536))) {
+      out.writeInt(MAGIC);
+      out.writeInt(stamp);
+      out.writeLong(length);
+      out.writeLong(time);
+      out.writeLong(logLength);
+      out.writeInt(values.size());
+      for (Map.Entry<String, String> e : values.entrySet()) {
+        byte[] kb = e.getKey().getBytes(cs), vb = e.getValue().getBytes(cs);
+        out.writeShort(kb.length);
+        out.writeInt(vb.length);
+        out.write(kb);
+        out.write(vb);
+      }
+    }
+  }
+  // remove key from the keys of value
+  private void unlink(String value, String key) {
+    keys.computeIfPresent(value, (v, set) -> {
+      set.remove(key);
+      return set.isEmpty()? null:set;
+    });
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int MAGIC = 0x4E534932; // "NSI2"
+  private ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>(256);
+  private ConcurrentHashMap<String, Set<String>> keys = new ConcurrentHashMap<>(256);
+  private NanoExtractor extractor;
+  private String name;
+}
@@ -0,0 +1,103 @@
+package nanodb;
+//
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+/**
+NanoSlab, the off-heap memory of NanoCache.
+<br>- Direct memory is allocated in pages of 1 MB. Each page is split into slots of one slab class (64 B ... 1 MB).
+<br>- Data is stored in the smallest fitting slot. The handle of a slot is: slab class (high 8 bits) + slot number.
+<br>- Freed slots are reused by the same slab class. Pages are only released by clear().
+<br>- allocate() and free() are not synchronized: NanoCache calls them under its locks and validates the copies.
+@author Joe T. Schwarz (c)
+*/
+class NanoSlab {
+  /**
+  constructor
+  */
+  NanoSlab() {
+    clear();
+  }
+  /**
+  allocate a slot and store data
+  @param data byte array
+  @return long, handle of the slot, -1 if data is too large (&gt; 1 MB) or direct memory is exhausted
+  */
+  long allocate(byte[] data) {
+    int c = Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(1, data.length) - 1) - MIN);
+    if (c >= CLASSES) return -1;
+    int slot, per = PAGE >> (c + MIN);
+    if (frees[c].size() > 0) slot = frees[c].remove(frees[c].size() - 1);
+    else try {
+      if (tops[c] == pages[c].size() * per) pages[c].add(ByteBuffer.allocateDirect(PAGE));
+      slot = tops[c]++;
+    } catch (OutOfMemoryError e) {
+      return -1;
+    }
+    ByteBuffer bb = page(c, slot);
+    bb.put(data);
+    reserved += 1 << (c + MIN);
+    return ((long)c << 56) | slot;
+  }
+  /**
+  free a slot for reuse
+  @param handle long, the slot handle
+  */
+  void free(long handle) {
+    int c = (int)(handle >>> 56);
+    frees[c].add((int)handle);
+    reserved -= 1 << (c + MIN);
+  }
+  /**
+  copy the data of a slot into a byte array
+  @param handle long, the slot handle
+  @param buf byte array, the data (buf.length bytes)
+  */
+  void copy(long handle, byte[] buf) {
+    page((int)(handle >>> 56), (int)handle).get(buf);
+  }
+  /**
+  copy the data of a slot into a ByteBuffer (e.g. a direct socket buffer)
+  @param handle long, the slot handle
+  @param len int, data length
+  @param dst ByteBuffer with at least len bytes remaining
+  */
+  void copy(long handle, int len, ByteBuffer dst) {
+    ByteBuffer bb = page((int)(handle >>> 56), (int)handle);
+    bb.limit(bb.position() + len);
+    dst.put(bb);
+  }
+  /**
+  @return long, the bytes of all allocated slots
+  */
+  long getReserved() {
+    return reserved;
+  }
+  /**
+  release all pages
+  */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  void clear() {
+    pages = new CopyOnWriteArrayList[CLASSES];
+    frees = new ArrayList[CLASSES];
+    for (int c = 0; c < CLASSES; ++c) {
+      pages[c] = new CopyOnWriteArrayList<>(); // readers are not locked
+      frees[c] = new ArrayList<>();
+    }
+    tops = new int[CLASSES];
+    reserved = 0;
+  }
+  // a view on the slot
+  private ByteBuffer page(int c, int slot) {
+    int per = PAGE >> (c + MIN);
+    ByteBuffer bb = pages[c].get(slot / per).duplicate();
+    bb.position((slot % per) << (c + MIN));
+    return bb;
+  }
+  //---------------------------------------------------------------------------------------
+  private static final int PAGE = 0x100000, MIN = 6, CLASSES = 15; // 64 B ... 1 MB
+  private volatile CopyOnWriteArrayList<ByteBuffer>[] pages;
+  private ArrayList<Integer>[] frees;
+  private volatile long reserved;
+  private int[] tops;
+}
@@ -0,0 +1,97 @@
+package nanodb;
+//
+import java.io.IOException;
+import java.util.*;
+/**
+NanoSnapshot, a consistent point-in-time view of the committed data of a NanoDB (e.g. for long scans).
+<br>- It pins the NanoDB file generation and the committed changes of the log at snapshot time.
+<br>- The later commits and compactions don't change it. Uncommitted changes are never seen.
+<br>- Nothing is locked. The snapshot must be closed to release the pinned file.
+@author Joe T. Schwarz (c)
+*/
+public class NanoSnapshot implements AutoCloseable {
+  /**
+  constructor
+  @param file NanoFile, the pinned (retained) file
+  @param changes HashMap of key and committed data (null: deleted) not yet in file
+  @param encoded boolean, true: the data are encoded records (see NanoCodecs)
+  */
+  NanoSnapshot(NanoFile file, HashMap<String, byte[]> changes, boolean encoded) {
+    this.file = file;
+    this.changes = changes;
+    this.encoded = encoded;
+  }
+  /**
+  isExisted
+  @param key String
+  @return boolean true if key existed at snapshot time
+  */
+  public boolean isExisted(String key) {
+    if (changes.containsKey(key)) return changes.get(key) != null;
+    return file.contains(key);
+  }
+  /**
+  readObject
+  @param key String
+  @return byte array for (non)serializable object as committed at snapshot time
+  @exception Exception thrown by JAVA
+  */
+  public byte[] readObject(String key) throws Exception {
+    if (closed) throw new Exception("Snapshot is closed.");
+    if (changes.containsKey(key)) {
+      byte[] buf = changes.get(key);
+      if (buf == null) throw new Exception("Unknown "+key);
+      return encoded? NanoCodecs.decode(buf):buf;
+    }
+    if (!file.contains(key)) throw new Exception("Unknown "+key);
+    return file.read(key, false);
+  }
+  /**
+  getKeys
+  @return ArrayList of all keys at snapshot time
+  */
+  public ArrayList<String> getKeys() {
+    ArrayList<String> list = new ArrayList<>(512);
+    for (String key : file.keys()) if (!changes.containsKey(key)) list.add(key);
+    for (String key : changes.keySet()) if (changes.get(key) != null) list.add(key);
+    return list;
+  }
+  /**
+  scan the keys in key order from fromKey (inclusive) to toKey (exclusive).
+  <br>The keys are sorted by the first scan. Next page: fromKey = last key + "\0"
+  @param fromKey String, null: from the first key
+  @param toKey String, null: up to the last key
+  @param limit int, max. number of keys
+  @return ArrayList of keys in key order
+  */
+  public ArrayList<String> scan(String fromKey, String toKey, int limit) {
+    if (sorted == null) {
+      String[] keys = getKeys().toArray(new String[0]);
+      Arrays.sort(keys);
+      sorted = keys;
+    }
+    int i = fromKey == null? 0:Arrays.binarySearch(sorted, fromKey);
+    if (i < 0) i = -i - 1;
+    ArrayList<String> list = new ArrayList<>(Math.min(limit, 1024));
+    for (; i < sorted.length && list.size() < limit; ++i) {
+      if (toKey != null && sorted[i].compareTo(toKey) >= 0) break;
+      list.add(sorted[i]);
+    }
+    return list;
+  }
+  /**
+  close the snapshot and release the pinned file
+  @exception IOException thrown by JAVA
+  */
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    file.release();
+  }
+  //---------------------------------------------------------------------------------------
+  private HashMap<String, byte[]> changes;
+  private volatile boolean closed;
+  private volatile String[] sorted;
+  private boolean encoded;
+  private NanoFile file;
+}
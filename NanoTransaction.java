@@ -0,0 +1,176 @@
+package nanodb;
+//
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+/**
+NanoTransaction, a set of adds, updates and deletes of different keys. They're buffered by the client
+<br>and applied all or nothing by NanoDB.commit(userID, transaction): one request, one log record.
+<br>- The keys are locked in key order for the commit (max. timeout milliseconds each) and unlocked after it.
+<br>- Format: timeout, number of changes, then per change: op, key length, data length, key, data
+<br>  = 4+4 bytes + (1+2+4+k+d) bytes per change
+@author Joe T. Schwarz (c)
+*/
+public class NanoTransaction {
+  /**
+  constructor, an empty transaction (see NanoDB.begin() or NanoDBConnect.begin())
+  */
+  public NanoTransaction() { }
+  /**
+  add a new key
+  @param key String
+  @param obj serializable object
+  @return this NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  public NanoTransaction add(String key, Object obj) throws Exception {
+    return add(key, serialize(obj));
+  }
+  /**
+  add a new key
+  @param key String
+  @param buf byte array for (non)serializable object
+  @return this NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  public NanoTransaction add(String key, byte[] buf) throws Exception {
+    return put(ADD, key, buf);
+  }
+  /**
+  update an existing key
+  @param key String
+  @param obj serializable object
+  @return this NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  public NanoTransaction update(String key, Object obj) throws Exception {
+    return update(key, serialize(obj));
+  }
+  /**
+  update an existing key
+  @param key String
+  @param buf byte array for (non)serializable object
+  @return this NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  public NanoTransaction update(String key, byte[] buf) throws Exception {
+    return put(UPDATE, key, buf);
+  }
+  /**
+  delete an existing key
+  @param key String
+  @return this NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  public NanoTransaction delete(String key) throws Exception {
+    return put(DELETE, key, null);
+  }
+  /**
+  setTimeout, max. waiting time for the lock of each key by commit. Default: 0 (don't wait)
+  @param timeout long, milliseconds
+  */
+  public void setTimeout(long timeout) {
+    this.timeout = (int)Math.max(0, Math.min(timeout, Integer.MAX_VALUE));
+  }
+  /**
+  @return long, max. waiting time for the lock of each key in milliseconds
+  */
+  public long getTimeout() {
+    return timeout;
+  }
+  /**
+  @return int, number of buffered changes
+  */
+  public int size() {
+    return changes.size();
+  }
+  /**
+  clear all buffered changes (e.g. to reuse this transaction)
+  */
+  public void clear() {
+    changes.clear();
+  }
+  //
+  static final byte ADD = 0, UPDATE = 1, DELETE = 2;
+  /**
+  @return String array of the keys in key order
+  */
+  String[] keys() {
+    return changes.keySet().toArray(new String[changes.size()]);
+  }
+  /**
+  @param key String
+  @return byte, ADD, UPDATE or DELETE
+  */
+  byte op(String key) {
+    return changes.get(key).op;
+  }
+  /**
+  @param key String
+  @return byte array of added/updated key, null if deleted
+  */
+  byte[] data(String key) {
+    return changes.get(key).buf;
+  }
+  /**
+  @return byte array of the serialized transaction (wire format)
+  */
+  byte[] toBytes() {
+    int len = 8;
+    for (Map.Entry<String, Change> e : changes.entrySet())
+      len += 7 + e.getKey().getBytes().length + (e.getValue().buf != null? e.getValue().buf.length:0);
+    ByteBuffer bb = ByteBuffer.allocate(len).putInt(timeout).putInt(changes.size());
+    for (Map.Entry<String, Change> e : changes.entrySet()) {
+      byte[] kb = e.getKey().getBytes(), buf = e.getValue().buf;
+      bb.put(e.getValue().op).putShort((short)kb.length).putInt(buf != null? buf.length:-1).put(kb);
+      if (buf != null) bb.put(buf);
+    }
+    return bb.array();
+  }
+  /**
+  @param buf byte array of a serialized transaction
+  @param off int, offset of the transaction in buf
+  @return NanoTransaction
+  @exception Exception thrown by JAVA
+  */
+  static NanoTransaction parse(byte[] buf, int off) throws Exception {
+    ByteBuffer bb = ByteBuffer.wrap(buf, off, buf.length - off);
+    NanoTransaction tx = new NanoTransaction();
+    tx.timeout = bb.getInt();
+    for (int n = bb.getInt(); n > 0; --n) {
+      byte op = bb.get();
+      byte[] kb = new byte[bb.getShort() & 0xFFFF];
+      int dl = bb.getInt();
+      bb.get(kb);
+      byte[] data = dl < 0? null:new byte[dl];
+      if (data != null) bb.get(data);
+      tx.put(op, new String(kb), data);
+    }
+    return tx;
+  }
+  //
+  private NanoTransaction put(byte op, String key, byte[] buf) throws Exception {
+    if (changes.containsKey(key)) throw new Exception(key+" is already in transaction.");
+    if (op != DELETE && buf == null) throw new Exception("No data for "+key);
+    changes.put(key, new Change(op, buf));
+    return this;
+  }
+  private static byte[] serialize(Object obj) throws Exception {
+    ByteArrayOutputStream bao = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bao);
+    oos.writeObject(obj);
+    oos.close();
+    return bao.toByteArray();
+  }
+  private static class Change {
+    Change(byte op, byte[] buf) {
+      this.op = op;
+      this.buf = buf;
+    }
+    private byte op;
+    private byte[] buf;
+  }
+  //---------------------------------------------------------------------------------------
+  private TreeMap<String, Change> changes = new TreeMap<>();
+  private int timeout;
+}